@@ -1,16 +1,25 @@
 package client;
 
+import java.net.InetSocketAddress;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
-import java.util.Vector;
+import java.util.BitSet;
+
+import share.BusyException;
+import share.Resource;
 
 /**
  * Interfaccia che estende {@link java.rmi.Remote}. Tale interfaccia
  * pubblicizza dei metodi che possono essere chiamati remotamente.
  */
 public interface Client extends Remote {
-	public Boolean download() throws RemoteException, CloneNotSupportedException;
+	public Boolean download(String requester) throws RemoteException, CloneNotSupportedException, BusyException;
+	public byte[] downloadChunk(String requester, Resource resource, int part, long offset, int length)
+			throws RemoteException, BusyException;
 	public String getClientName() throws RemoteException;
-	public Vector<String[]> getResourceList() throws RemoteException;
+	public BitSet getAvailableParts(Resource resource) throws RemoteException;
+	public InetSocketAddress getDataEndpoint() throws RemoteException;
+	public byte[][] getPartDigests(Resource resource) throws RemoteException;
+	public long getResourceSize(Resource resource) throws RemoteException;
 	public boolean ping() throws RemoteException;
 }
@@ -2,23 +2,52 @@ package client;
 
 import gui.ClientGUI;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Queue;
 import java.util.Vector;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-
-import javax.swing.DefaultListModel;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import server.Server;
+import share.BusyException;
+import share.DaemonThreadFactory;
+import share.Log;
 import share.Resource;
 
 /**
@@ -29,61 +58,426 @@ import share.Resource;
 public class ClientImpl extends UnicastRemoteObject implements Client {
 	private static final String HOST = "localhost";
 	private static final int uploadTime = 5000;
-	private ClientGUI clientGUI;
+
+	/**
+	 * Intervallo in millisecondi tra due rinnovi del lease presso il server.
+	 * Deve essere minore della durata del lease del server. Configurabile
+	 * con la proprietà di sistema <code>client.heartbeatPeriod</code>.
+	 */
+	private static final long heartbeatPeriod = Long.getLong("client.heartbeatPeriod", 2000);
+
+	/**
+	 * Directory in cui ogni client memorizza i file delle proprie risorse,
+	 * in una sottodirectory con il proprio nome. Se la proprietà di sistema
+	 * <code>client.dataDir</code> non è impostata, il download delle risorse
+	 * viene solamente simulato.
+	 */
+	private static final String dataDir = System.getProperty("client.dataDir");
+
+	/**
+	 * Dimensione massima in byte dei blocchi in cui viene trasferita una
+	 * parte. Configurabile con la proprietà di sistema
+	 * <code>client.chunkSize</code>.
+	 */
+	private static final int chunkSize = Integer.getInteger("client.chunkSize", 64 * 1024);
+
+	/**
+	 * Strategia di scelta delle parti e dei client da cui scaricarle.
+	 * Configurabile con la proprietà di sistema
+	 * <code>client.selectionStrategy</code>.
+	 */
+	private static final SelectionStrategy selectionStrategy =
+			SelectionStrategy.valueOf(System.getProperty("client.selectionStrategy", "FASTEST_FIRST"));
+
+	/**
+	 * Numero di fallimenti consecutivi dopo i quali un client non viene più
+	 * usato come sorgente di un download. Configurabile con la proprietà di
+	 * sistema <code>client.maxSourceFailures</code>.
+	 */
+	private static final int maxSourceFailures = Integer.getInteger("client.maxSourceFailures", 3);
+
+	/**
+	 * Tempo massimo in millisecondi per il download di una parte, dopo il
+	 * quale la parte viene riassegnata. Configurabile con la proprietà di
+	 * sistema <code>client.partTimeout</code>.
+	 */
+	private static final long partTimeout = Long.getLong("client.partTimeout", 3 * uploadTime);
+
+	/**
+	 * Numero di parti mancanti sotto il quale un download entra in modalità
+	 * endgame. Configurabile con la proprietà di sistema
+	 * <code>client.endgameParts</code>.
+	 */
+	private static final int endgameParts = Integer.getInteger("client.endgameParts", 4);
+
+	/**
+	 * Numero massimo di client a cui viene richiesta contemporaneamente la
+	 * stessa parte in modalità endgame. Configurabile con la proprietà di
+	 * sistema <code>client.endgameSources</code>.
+	 */
+	private static final int endgameSources = Integer.getInteger("client.endgameSources", 2);
+
+	/**
+	 * Intervallo in millisecondi dopo il quale vengono richieste di nuovo le
+	 * parti possedute dai client che stanno ancora scaricando la risorsa, se
+	 * nessun client libero possiede una parte mancante. Configurabile con la
+	 * proprietà di sistema <code>client.availabilityRefresh</code>.
+	 */
+	private static final long availabilityRefresh = Long.getLong("client.availabilityRefresh", 1000);
+
+	/**
+	 * Numero massimo di parti, o blocchi di parti, che il client invia
+	 * contemporaneamente agli altri client. Configurabile con la proprietà di
+	 * sistema <code>client.uploadCapacity</code>.
+	 */
+	private static final int uploadCapacity = Integer.getInteger("client.uploadCapacity", 4);
+
+	/**
+	 * Attesa massima in millisecondi di una richiesta nella coda degli
+	 * upload, dopo la quale il richiedente viene avvisato che il client è
+	 * occupato. Configurabile con la proprietà di sistema
+	 * <code>client.uploadQueueTimeout</code>.
+	 */
+	private static final long uploadQueueTimeout = Long.getLong("client.uploadQueueTimeout", 1000);
+
+	/**
+	 * Numero di slot di upload utilizzabili dai client da cui non è mai stata
+	 * scaricata una parte. Con un valore negativo, il default, tutti i client
+	 * sono serviti allo stesso modo; altrimenti viene applicata la politica
+	 * tit-for-tat. Configurabile con la proprietà di sistema
+	 * <code>client.optimisticUploads</code>.
+	 * 
+	 * @see {@link UploadSlots}
+	 */
+	private static final int optimisticUploads = Integer.getInteger("client.optimisticUploads", -1);
+
+	/**
+	 * Attesa in millisecondi prima di richiedere di nuovo una parte a un
+	 * client che ha risposto di essere occupato. Configurabile con la
+	 * proprietà di sistema <code>client.busyRetryDelay</code>.
+	 */
+	private static final long busyRetryDelay = Long.getLong("client.busyRetryDelay", 1000);
+
+	/**
+	 * Numero massimo di download eseguiti contemporaneamente; gli altri
+	 * attendono in coda che uno termini. Configurabile con la proprietà di
+	 * sistema <code>client.maxDownloads</code>.
+	 */
+	private static final int maxDownloads = Integer.getInteger("client.maxDownloads", 4);
+
+	/**
+	 * Numero di thread del pool di download in aggiunta agli slot di
+	 * download, per i download scaduti che restano bloccati nella chiamata
+	 * remota fino al timeout RMI anche dopo aver liberato il proprio slot.
+	 * Configurabile con la proprietà di sistema
+	 * <code>client.spareDownloadThreads</code>.
+	 */
+	private static final int spareDownloadThreads = Integer.getInteger("client.spareDownloadThreads", 4);
+
+	/**
+	 * Numero di risorse richieste al server per ogni pagina di una ricerca
+	 * per nome. Configurabile con la proprietà di sistema
+	 * <code>client.searchPageSize</code>.
+	 */
+	private static final int searchPageSize = Integer.getInteger("client.searchPageSize", 20);
+
+	/**
+	 * Se <code>true</code> il client non crea l'interfaccia grafica.
+	 * Configurabile con la proprietà di sistema <code>client.headless</code>;
+	 * è attivo anche quando la JVM è avviata con
+	 * <code>java.awt.headless</code>.
+	 */
+	private static final boolean headless = Boolean.getBoolean("client.headless") || Boolean.getBoolean("java.awt.headless");
+
+	static {
+		// Part deadlines cannot interrupt a blocked RMI call: let the transport
+		// fail it instead, so that an expired download releases its thread.
+		// Must be set before the RMI transport opens its first connection.
+		if (System.getProperty("sun.rmi.transport.tcp.responseTimeout") == null) {
+			System.setProperty("sun.rmi.transport.tcp.responseTimeout", String.valueOf(partTimeout));
+		}
+	}
+
+	/**
+	 * Osservatori dello stato del client, tra cui l'eventuale interfaccia
+	 * grafica.
+	 */
+	private List<ClientListener> listeners = new CopyOnWriteArrayList<ClientListener>();
+	private Log logger;
 	private String clientName;
-	private Server server;
+	private volatile Server server;
 	private int downloadCapacity;
 	private Vector<Resource> resourceList;
-	private DefaultListModel resourceListModel;
+
+	/**
+	 * Archivio dei file delle risorse, <code>null</code> se il download
+	 * viene simulato.
+	 */
+	private ResourceStorage storage;
+
+	/**
+	 * Slot di upload condivisi dal canale dati e dalle chiamate RMI.
+	 */
+	private UploadSlots uploadSlots;
+
+	/**
+	 * Canale dati su cui vengono servite le parti delle risorse,
+	 * <code>null</code> se il download viene simulato.
+	 */
+	private DataServer dataServer;
+
+	/**
+	 * Versione della lista delle risorse, incrementata ad ogni modifica.
+	 * Permette al server di accorgersi di eventuali modifiche perse e di
+	 * richiedere in tal caso la lista completa.
+	 */
+	private long resourceVersion = 0;
 	
 	/**
-	 * Attributo utile allo scheluder e ai thread che gestiscono il download
-	 * delle risorse. Si è scelto un {@link AtomicInteger} poiché si vuole sincronizzare
-	 * su tale variabile. Non è stato possibile utilizzare un Integer in quanto
-	 * tale classe, all'occorrenza di una modifica, alloca un nuova variabile
-	 * con il nuovo valore per questioni di performance. Tale caratteristica
-	 * causa la perdita del diritto di eseguire wait e notify sul monitor.
+	 * Slot di download disponibili, al più <code>downloadCapacity</code>.
+	 * Ogni parte in download occupa uno slot; gli scheduler si bloccano
+	 * sul semaforo finché non se ne libera uno.
+	 */
+	private Semaphore downloadSlots;
+
+	/**
+	 * Pool di <code>maxDownloads</code> thread che esegue gli scheduler dei
+	 * download in corso.
+	 */
+	private ExecutorService schedulerExecutor;
+
+	/**
+	 * Pool che esegue i download delle singole parti. I download attivi
+	 * sono limitati dagli slot di download; il pool ha
+	 * <code>spareDownloadThreads</code> thread in più perché un download
+	 * scaduto può restare bloccato nella chiamata remota anche dopo che il
+	 * suo slot è stato liberato.
+	 */
+	private ExecutorService downloadExecutor;
+
+	/**
+	 * Esecutore che fa scadere i download delle parti che superano
+	 * <code>partTimeout</code>.
 	 */
-	private AtomicInteger currentDownloading = new AtomicInteger(0);
+	private ScheduledExecutorService timeoutExecutor;
+
+	/**
+	 * Download in corso, indicizzati per risorsa. Gli slot di download
+	 * vengono divisi equamente tra i download in corso.
+	 */
+	private ConcurrentMap<Resource, DownloadScheduler> activeDownloads = new ConcurrentHashMap<Resource, DownloadScheduler>();
+
+	/**
+	 * Numero di download in esecuzione, esclusi quelli in coda nel pool degli
+	 * scheduler.
+	 */
+	private AtomicInteger runningDownloads = new AtomicInteger(0);
+
+	/**
+	 * Statistiche dei client da cui sono state scaricate delle parti.
+	 */
+	private ConcurrentMap<Client, SourceStats> sourceStats = new ConcurrentHashMap<Client, SourceStats>();
 
 	public ClientImpl(final String clientName, String serverName, int downloadCapacity, Vector<Resource> resources)
 			throws RemoteException, MalformedURLException {
-		this.clientGUI = new ClientGUI(this);
+		this.logger = new Log(clientName);
 		this.clientName = clientName;
 		this.downloadCapacity = downloadCapacity;
+		this.downloadSlots = new Semaphore(downloadCapacity, true);
+		this.schedulerExecutor = Executors.newFixedThreadPool(maxDownloads, new DaemonThreadFactory(clientName + "-scheduler"));
+		this.downloadExecutor = Executors.newFixedThreadPool(downloadCapacity + spareDownloadThreads,
+				new DaemonThreadFactory(clientName + "-download"));
+		this.timeoutExecutor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(clientName + "-timeout"));
 		this.resourceList = resources;
-		this.resourceListModel = new DefaultListModel();
-
-		for (int i = 0; i < this.resourceList.size(); i++) {
-			this.resourceListModel.addElement(resourceList.elementAt(i));
-		}
-
-		javax.swing.SwingUtilities.invokeLater(new Runnable() {
-			public void run() {
-				clientGUI.createAndShowGUI(clientName);
+		this.uploadSlots = new UploadSlots(uploadCapacity, uploadQueueTimeout, optimisticUploads);
+		if (dataDir != null) {
+			this.storage = new ResourceStorage(new File(dataDir, clientName));
+			try {
+				this.dataServer = new DataServer(storage, uploadSlots, clientName, HOST, resourceList);
+				this.dataServer.start();
+			} catch (IOException e) {
+				logger.warning("Cannot open the data channel. Parts will be sent over RMI");
 			}
-		});
+		}
 
-		clientGUI.setModelFile(resourceListModel);
+		if (!headless) {
+			final ClientGUI clientGUI = new ClientGUI(this);
+			addClientListener(clientGUI);
+			javax.swing.SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					clientGUI.createAndShowGUI(clientName);
+				}
+			});
+		}
 
 		try {
 			connectToServer(serverName);
 		} catch (Exception e) {
-			System.out.println("The server " + serverName + " seems to be down. Trying to connect to another server...");
+			logger.warning("The server " + serverName + " seems to be down. Trying to connect to another server...");
 			connectToServer();
 		}
+
+		new HeartbeatThread().start();
+		resumeDownloads();
+	}
+
+	/**
+	 * Riprende i download interrotti trovati nell'archivio del client,
+	 * scaricando solo le parti che non erano ancora state completate. I
+	 * client che possiedono le risorse vengono richiesti al server con
+	 * un'unica ricerca.
+	 * <p>
+	 * La ripresa richiede l'archivio, cioè la proprietà
+	 * <code>client.dataDir</code>: senza archivio i download sono simulati,
+	 * le parti completate non vengono salvate e un download interrotto da
+	 * una disconnessione o dal riavvio del client ricomincia da capo.
+	 * </p>
+	 * 
+	 * @see {@link ResourceStorage#getIncompleteResources()}
+	 * @see {@link server.Server#getClientListForResources(Vector)}
+	 */
+	public void resumeDownloads() {
+		if (storage == null) {
+			return;
+		}
+
+		Vector<Resource> queries = new Vector<Resource>();
+		for (Resource resource : storage.getIncompleteResources()) {
+			if (!resourceList.contains(resource) && !activeDownloads.containsKey(resource)) {
+				queries.add(resource);
+			}
+		}
+
+		Server current = server;
+		if (queries.isEmpty() || current == null) {
+			return;
+		}
+
+		Map<Resource, Vector<Client>> clientLists;
+		try {
+			clientLists = current.getClientListForResources(queries);
+		} catch (RemoteException e) {
+			log("Il server non risponde. I download interrotti non sono stati ripresi");
+			return;
+		}
+
+		for (Resource resource : queries) {
+			Vector<Client> clientList = clientLists.get(resource);
+			if (clientList == null || clientList.isEmpty()) {
+				log("Nessun client possiede la risorsa " + resource);
+				continue;
+			}
+
+			log("Riprendo il download interrotto della risorsa " + resource);
+			startDownload(resource, clientList);
+		}
+	}
+
+	/**
+	 * Registra l'osservatore <code>listener</code> dello stato del client e
+	 * gli notifica la lista delle risorse possedute.
+	 * 
+	 * @param listener
+	 */
+	public synchronized void addClientListener(ClientListener listener) {
+		listeners.add(listener);
+		listener.resourcesChanged(getResourceList());
+	}
+
+	/**
+	 * Rimuove l'osservatore <code>listener</code> dello stato del client.
+	 * 
+	 * @param listener
+	 */
+	public void removeClientListener(ClientListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Scrive nel log il messaggio <code>message</code> per l'utente e lo
+	 * notifica agli osservatori.
+	 */
+	private void log(String message) {
+		log(Log.Level.INFO, message);
+	}
+
+	/**
+	 * Scrive nel log con livello <code>level</code> il messaggio
+	 * <code>message</code> per l'utente e lo notifica agli osservatori.
+	 */
+	private void log(Log.Level level, String message) {
+		logger.log(level, message, null);
+		for (ClientListener listener : listeners) {
+			listener.logged(message);
+		}
+	}
+
+	/**
+	 * Notifica agli osservatori il nuovo stato <code>state</code> della parte
+	 * <code>part</code> della risorsa <code>resource</code>.
+	 */
+	private void firePartChanged(Resource resource, int part, String source, String state) {
+		for (ClientListener listener : listeners) {
+			listener.partChanged(resource, part, source, state);
+		}
 	}
 
 	/**
-	 * Aggiunge la risorsa alla lista delle risorse e chiama setModelFile().
+	 * Aggiunge la risorsa alla lista delle risorse, lo notifica agli
+	 * osservatori e comunica al server la sola risorsa aggiunta.
 	 * 
 	 * @param resource
-	 * @see {@link gui.ClientGUI#setModelFile(DefaultListModel)}
+	 * @see {@link ClientListener#resourcesChanged(Vector)}
 	 */
-	public void addResource(Resource resource) {
+	public synchronized void addResource(Resource resource) {
 		this.resourceList.addElement(resource);
-		this.resourceListModel.addElement(resource);
-		clientGUI.setModelFile(this.resourceListModel);
+		if (!listeners.isEmpty()) {
+			Vector<Resource> resources = getResourceList();
+			for (ClientListener listener : listeners) {
+				listener.resourcesChanged(resources);
+			}
+		}
+
+		resourceVersion++;
+		Vector<Resource> added = new Vector<Resource>();
+		added.add(resource);
+		publishResources(added, new Vector<Resource>());
+	}
+
+	/**
+	 * Comunica al server le risorse aggiunte e rimosse nella versione
+	 * corrente della lista delle risorse. Se il server non riesce ad
+	 * applicare la modifica, gli viene inviata la lista completa.
+	 * 
+	 * @param added
+	 * @param removed
+	 * @see {@link server.Server#updateResources(Client, long, Vector, Vector)}
+	 */
+	private synchronized void publishResources(Vector<Resource> added, Vector<Resource> removed) {
+		Server current = server;
+		if (current == null) {
+			// the whole list is sent on the next connection
+			return;
+		}
+
+		try {
+			if (!current.updateResources(this, resourceVersion, added, removed)) {
+				register(current);
+			}
+		} catch (RemoteException e) {
+			log(Log.Level.WARNING, "Non è stato possibile comunicare al server la disponibilità della nuova risorsa");
+		}
+	}
+
+	/**
+	 * Registra il client presso il server "server" inviando la lista
+	 * completa delle risorse possedute e la sua versione.
+	 * 
+	 * @param server
+	 * @throws RemoteException
+	 */
+	private synchronized void register(Server server) throws RemoteException {
+		server.newClient(this, getResourceList(), resourceVersion);
 	}
 
 	/**
@@ -102,29 +496,27 @@ public class ClientImpl extends UnicastRemoteObject implements Client {
 			for (int i = 0; i < serverList.length && !connected; i++) {
 				try {
 					server = (Server) Naming.lookup("rmi:" + serverList[i]);
-					server.newClient(this);
+					register(server);
 					connected = true;
-					System.out.println("Connected to server " + server.getServerName());
-					clientGUI.appendLog("Connesso a server " + server.getServerName());
+					log("Connesso a server " + server.getServerName());
 				} catch (NotBoundException e) {
-					e.printStackTrace();
+					logger.error(serverList[i] + " has no associated binding", e);
 				} catch (RemoteException e) {
-					System.out.println("Going to try to connect with next server...");
+					logger.warning("Going to try to connect with next server...");
 				}
 			}
 
 			if (!connected) {
-				System.out.println("No server responds");
-				clientGUI.appendLog("Nessun server disponibile :(");
+				log(Log.Level.WARNING, "Nessun server disponibile :(");
 			}
 
 			return connected;
 
 		} catch (RemoteException e) {
-			e.printStackTrace();
+			logger.error("Cannot list the servers", e);
 			return false;
 		} catch (MalformedURLException e) {
-			e.printStackTrace();
+			logger.error("Cannot list the servers", e);
 			return false;
 		}
 
@@ -140,24 +532,83 @@ public class ClientImpl extends UnicastRemoteObject implements Client {
 	 */
 	private void connectToServer(String serverName) throws MalformedURLException, RemoteException, NotBoundException {
 		server = (Server) Naming.lookup("rmi://" + HOST + "/Server/" + serverName);
-		server.newClient(this);
-		clientGUI.appendLog("Connesso a server " + server.getServerName());
+		register(server);
+		log("Connesso a server " + server.getServerName());
+	}
+
+	/**
+	 * Connette di nuovo al server <code>serverName</code>, oppure se non
+	 * risponde al primo server disponibile, il client disconnesso con
+	 * {@link #disconnect()} e riprende i download interrotti. Ritorna
+	 * <code>true</code> se il client è connesso.
+	 * 
+	 * @param serverName
+	 * @see {@link #connectToServer(String)}, {@link #resumeDownloads()}
+	 */
+	public boolean connect(String serverName) {
+		if (server != null) {
+			return true;
+		}
+		try {
+			connectToServer(serverName);
+		} catch (Exception e) {
+			logger.warning("The server " + serverName + " seems to be down. Trying to connect to another server...");
+			server = null;
+			if (!connectToServer()) {
+				return false;
+			}
+		}
+		resumeDownloads();
+		return true;
+	}
+
+	/**
+	 * Connette di nuovo al primo server disponibile il client disconnesso
+	 * con {@link #disconnect()} e riprende i download interrotti. Ritorna
+	 * <code>true</code> se il client è connesso.
+	 * 
+	 * @see {@link #connectToServer()}, {@link #resumeDownloads()}
+	 */
+	public boolean connect() {
+		if (server != null) {
+			return true;
+		}
+		if (!connectToServer()) {
+			return false;
+		}
+		resumeDownloads();
+		return true;
 	}
 
 	/**
 	 * Disconnette il client dalla rete notificandolo al server tramite il
-	 * metodo {@link Server#closeClient(Client)}.
+	 * metodo {@link Server#closeClient(Client)} e annulla i download in
+	 * corso. Non ha effetto sul server se il client è già disconnesso.
 	 * 
 	 * @see {@link #connectToServer()}, {@link #connectToServer(String)}
 	 */
 	public void disconnect() {
+		cancelDownloads();
+		Server current = server;
+		if (current == null) {
+			return;
+		}
+
+		server = null;
 		try {
-			server.closeClient(this);
-			server = null;
-			clientGUI.appendLog("Disconnesso");
+			current.closeClient(this);
 		} catch (RemoteException e) {
-			server = null;
-			clientGUI.appendLog("Disconnesso");
+			logger.warning("The server did not acknowledge the disconnection");
+		}
+		log("Disconnesso");
+	}
+
+	/**
+	 * Annulla tutti i download in corso.
+	 */
+	public void cancelDownloads() {
+		for (DownloadScheduler download : activeDownloads.values()) {
+			download.cancel();
 		}
 	}
 
@@ -168,96 +619,242 @@ public class ClientImpl extends UnicastRemoteObject implements Client {
 	 * altrimenti ritorna <code>false</code>.
 	 * </p>
 	 * <p>
-	 * Poiché il sistema simula il download, è accettabile che non venga passato
-	 * alcuno parametro al metodo e che ritorni un valore booleano.
+	 * Poiché il sistema simula il download, è accettabile che venga passato
+	 * al metodo solo il nome del client richiedente e che ritorni un valore
+	 * booleano.
 	 * </p>
+	 * 
+	 * @param requester
+	 * @throws BusyException se non si libera uno slot di upload in tempo
 	 */
 	@Override
-	public Boolean download() throws RemoteException,
-			CloneNotSupportedException {
+	public Boolean download(String requester) throws RemoteException,
+			CloneNotSupportedException, BusyException {
 		try {
-			Thread.sleep(uploadTime);
-			return true;
+			UploadSlots.Permit permit = acquireUploadSlot(requester);
+			try {
+				Thread.sleep(uploadTime);
+				return true;
+			} finally {
+				permit.release();
+			}
 		} catch (InterruptedException e) {
-			System.out.println("Interrupted while sleeping");
+			logger.warning("Interrupted while sleeping");
 		}
 		return false;
 	}
 
 	/**
-	 * Ritorna il nome del client.
+	 * Ritorna al più <code>length</code> byte della parte <code>part</code>
+	 * della risorsa <code>resource</code>, a partire dalla posizione
+	 * <code>offset</code> all'interno della parte. Una parte viene trasferita
+	 * con più chiamate successive, una per blocco.
+	 * 
+	 * @param requester
+	 * @param resource
+	 * @param part
+	 * @param offset
+	 * @param length
+	 * @throws RemoteException se la risorsa non è disponibile o non può
+	 * essere letta
+	 * @throws BusyException se non si libera uno slot di upload in tempo
 	 */
 	@Override
-	public String getClientName() {
-		return this.clientName;
+	public byte[] downloadChunk(String requester, Resource resource, int part, long offset, int length)
+			throws RemoteException, BusyException {
+		if (storage == null || !resourceList.contains(resource) && storage.getIncoming(resource) == null) {
+			throw new RemoteException("Risorsa " + resource + " non disponibile");
+		}
+
+		UploadSlots.Permit permit;
+		try {
+			permit = acquireUploadSlot(requester);
+		} catch (InterruptedException e) {
+			throw new RemoteException("Upload interrotto");
+		}
+
+		try {
+			return storage.read(resource, part, offset, length);
+		} catch (IOException e) {
+			throw new RemoteException("Errore di lettura della risorsa " + resource, e);
+		} finally {
+			permit.release();
+		}
 	}
 
 	/**
-	 * Restituisce la lista delle risorse possedute dal client come array di
-	 * stringhe di 2 elementi che identificano la risorsa.
+	 * Attende uno slot di upload per il client <code>requester</code>.
+	 * 
+	 * @param requester
+	 * @throws BusyException se nessuno slot si libera in tempo
 	 */
-	@Override
-	public Vector<String[]> getResourceList() throws RemoteException {
-		Vector<String[]> resources = new Vector<String[]>();
-
-		for (Iterator<Resource> iterator = resourceList.iterator(); iterator.hasNext();) {
-			Resource r = (Resource) iterator.next();
-			resources.add(r.toArrayStrings());
+	private UploadSlots.Permit acquireUploadSlot(String requester) throws InterruptedException, BusyException {
+		UploadSlots.Permit permit = uploadSlots.acquire(requester);
+		if (permit == null) {
+			throw new BusyException("Nessuno slot di upload libero su " + clientName);
 		}
-
-		return resources;
+		return permit;
 	}
 
 	/**
-	 * Tale metodo è utile per testare se il client è ancora connesso.
+	 * Ritorna l'indirizzo del canale dati su cui il client serve le parti
+	 * delle proprie risorse, oppure <code>null</code> se il client non ha un
+	 * canale dati.
+	 * 
+	 * @see {@link DataServer}
 	 */
 	@Override
-	public boolean ping() throws RemoteException {
-		return true;
+	public InetSocketAddress getDataEndpoint() {
+		if (dataServer == null) {
+			return null;
+		}
+		return new InetSocketAddress(HOST, dataServer.getPort());
 	}
 
 	/**
-	 * Controlla se la validità della stringa per identificare una risorsa e
-	 * chiama getClientListForResource() sul primo server disponibile. Una volta
-	 * ricevuta la lista dei client che possiedo la risorsa cercata, avvia il
-	 * download.
+	 * Ritorna l'impronta SHA-1 di ogni parte della risorsa
+	 * <code>resource</code>, oppure <code>null</code> se il client non
+	 * possiede il file della risorsa.
 	 * 
-	 * @param text
-	 * @see {@link server.Server#getClientListForResource(String[])}
+	 * @param resource
+	 * @throws RemoteException se il file della risorsa non può essere letto
 	 */
-	public void search(String text) {
-		
-		// check if it is already in downloading
-		if (currentDownloading.get() > 0) {
-			clientGUI.appendLog("Attendi la fine del download corrente");
-			return;
+	@Override
+	public byte[][] getPartDigests(Resource resource) throws RemoteException {
+		if (storage == null) {
+			return null;
 		}
-
-		// parse query string
-		String[] query = new String[2];
-		if (text.split(" ").length < 2) {
-			clientGUI.appendLog("Inserire il nome di una risora");
-			return;
+		if (!resourceList.contains(resource)) {
+			ResourceStorage.IncomingResource incoming = storage.getIncoming(resource);
+			return incoming != null ? incoming.getPartDigests() : null;
 		}
 
-		query[0] = text.split(" ")[0];
-		query[1] = text.split(" ")[1];
+		try {
+			return storage.getPartDigests(resource);
+		} catch (IOException e) {
+			throw new RemoteException("Errore di lettura della risorsa " + resource, e);
+		}
+	}
 
-		// check if query has two params
-		if (query[0].isEmpty() && query[1].isEmpty()) {
-			clientGUI.appendLog("Inserire il nome di una risora");
-			return;
+	/**
+	 * Ritorna la dimensione in byte del file della risorsa
+	 * <code>resource</code>, oppure -1 se il client non possiede il file e
+	 * il download della risorsa deve essere simulato.
+	 * 
+	 * @param resource
+	 */
+	@Override
+	public long getResourceSize(Resource resource) {
+		if (storage == null) {
+			return -1;
+		}
+		if (!resourceList.contains(resource)) {
+			ResourceStorage.IncomingResource incoming = storage.getIncoming(resource);
+			return incoming != null ? incoming.getSize() : -1;
 		}
+		return storage.getSize(resource);
+	}
 
-		// check if query is already in resourseList
-		for (Resource r : resourceList) {
-			if (Arrays.equals(r.toArrayStrings(), query)) {
-				clientGUI.appendLog("Possiedi già la risorsa cercata");
-				return;
-			}
+	/**
+	 * Ritorna le parti della risorsa <code>resource</code> che il client può
+	 * inviare: tutte se possiede la risorsa, quelle già scaricate se la
+	 * risorsa è in download, nessuna altrimenti.
+	 * 
+	 * @param resource
+	 */
+	@Override
+	public BitSet getAvailableParts(Resource resource) {
+		if (resourceList.contains(resource)) {
+			BitSet available = new BitSet(resource.getParts());
+			available.set(0, resource.getParts());
+			return available;
 		}
 
-		clientGUI.appendLog("Cerco la risorsa " + query[0] + " " + query[1]);
+		DownloadScheduler download = activeDownloads.get(resource);
+		if (download == null) {
+			return new BitSet();
+		}
+		return download.getAvailableParts();
+	}
+
+	/**
+	 * Ritorna il nome del client.
+	 */
+	@Override
+	public String getClientName() {
+		return this.clientName;
+	}
+
+	/**
+	 * Restituisce una copia della lista delle risorse possedute dal client.
+	 */
+	public synchronized Vector<Resource> getResourceList() {
+		return new Vector<Resource>(resourceList);
+	}
+
+	/**
+	 * Tale metodo è utile per testare se il client è ancora connesso.
+	 */
+	@Override
+	public boolean ping() throws RemoteException {
+		return true;
+	}
+
+	/**
+	 * Controlla se la validità della stringa per identificare una risorsa e
+	 * chiama getClientListForResource() sul primo server disponibile. Una volta
+	 * ricevuta la lista dei client che possiedo la risorsa cercata, avvia il
+	 * download e ne ritorna il {@link Future}, oppure <code>null</code> se il
+	 * download non è stato avviato.
+	 * Se la stringa contiene solo un nome, o un nome con i caratteri jolly
+	 * <code>*</code> e <code>?</code>, vengono invece elencate le risorse
+	 * corrispondenti; se il nome non contiene caratteri jolly e corrisponde a
+	 * una sola risorsa, ne viene avviato il download.
+	 * 
+	 * @param text
+	 * @see {@link server.Server#getClientListForResource(Resource)}
+	 * @see {@link server.Server#findResources(String, Resource, int)}
+	 */
+	public Future<Boolean> search(String text) {
+		
+		// parse query string
+		String[] tokens = text.trim().split(" +");
+		if (tokens[0].isEmpty()) {
+			log("Inserire il nome di una risora");
+			return null;
+		}
+
+		boolean wildcard = tokens[0].indexOf('*') >= 0 || tokens[0].indexOf('?') >= 0;
+		if (tokens.length < 2 || wildcard) {
+			return discover(tokens[0], wildcard);
+		}
+
+		Resource query;
+		try {
+			query = new Resource(tokens[0], Integer.parseInt(tokens[1]));
+		} catch (NumberFormatException e) {
+			log("Il numero di parti della risorsa deve essere un intero positivo");
+			return null;
+		}
+
+		if (query.getParts() < 1) {
+			log("Il numero di parti della risorsa deve essere un intero positivo");
+			return null;
+		}
+
+		// check if query is already in resourseList
+		if (resourceList.contains(query)) {
+			log("Possiedi già la risorsa cercata");
+			return null;
+		}
+
+		// check if it is already in downloading
+		if (activeDownloads.containsKey(query)) {
+			log("La risorsa " + query + " è già in download");
+			return null;
+		}
+
+		log("Cerco la risorsa " + query);
 		Vector<Client> clientList = new Vector<Client>();
 
 		try {
@@ -269,198 +866,1235 @@ public class ClientImpl extends UnicastRemoteObject implements Client {
 				clientList = server.getClientListForResource(query);
 
 				if (clientList != null && !clientList.isEmpty()) {
-					clientGUI.appendLog("Ricevuta la lista dei client per la risorsa " + query[0] + " " + query[1]);
+					log("Ricevuta la lista dei client per la risorsa " + query);
 				} else {
-					clientGUI.appendLog("Nessun client possiede la risorsa " + query[0] + " " + query[1]);
-					return;
+					log("Nessun client possiede la risorsa " + query);
+					return null;
 				}
 			}
 		} catch (RemoteException e) {
-			clientGUI.appendLog("Il server non risponde. Provo con un altro...");
+			log("Il server non risponde. Provo con un altro...");
 
 			if (connectToServer()) {
-				clientGUI.appendLog("Cerco la risorsa " + query[0] + " " + query[1]);
+				log("Cerco la risorsa " + query);
 				try {
 					clientList = server.getClientListForResource(query);
 
 					if (clientList != null && !clientList.isEmpty()) {
-						clientGUI.appendLog("Ricevuta la lista dei client per la risorsa " + query[0] + " " + query[1]);
+						log("Ricevuta la lista dei client per la risorsa " + query);
 					} else {
-						clientGUI.appendLog("Nessun client possiede la risorsa " + query[0] + " " + query[1]);
-						return;
+						log("Nessun client possiede la risorsa " + query);
+						return null;
 					}
 				} catch (RemoteException e1) {
-					clientGUI.appendLog("Errore di connessione al server. Riprova");
-					return;
+					log("Errore di connessione al server. Riprova");
+					return null;
 				}
 			}
 		}
 
 		// clientList is not empty
+		return startDownload(query, clientList);
+	}
+
+	/**
+	 * Elenca le risorse il cui nome corrisponde a <code>pattern</code>. Se
+	 * <code>pattern</code> non contiene caratteri jolly e corrisponde a una
+	 * sola risorsa, ne avvia il download.
+	 * 
+	 * @param pattern
+	 * @param wildcard
+	 */
+	private Future<Boolean> discover(String pattern, boolean wildcard) {
+		log("Cerco le risorse " + pattern);
+		Vector<Resource> found;
 		try {
-			new DownloadScheduler(clientList, query, this).start();
-		} catch (NumberFormatException e) {
-			System.out.println("Error in convert String to int");
+			found = findResources(pattern, null);
+		} catch (RemoteException e) {
+			log("Errore di connessione al server. Riprova");
+			return null;
+		}
+		if (found == null) {
+			return null;
+		}
+
+		if (found.isEmpty()) {
+			log("Nessuna risorsa corrisponde a " + pattern);
+			return null;
+		}
+		if (!wildcard && found.size() == 1) {
+			Resource resource = found.firstElement();
+			return search(resource.getName() + " " + resource.getParts());
+		}
+
+		StringBuilder list = new StringBuilder();
+		for (Resource resource : found) {
+			list.append(' ').append(resource);
 		}
+		log("Risorse trovate per " + pattern + ":" + list);
+		if (found.size() >= searchPageSize) {
+			log("Sono mostrate solo le prime " + searchPageSize + " risorse");
+		}
+		return null;
 	}
 
 	/**
-	 * Thread che si occupa di creare e avviare i thread per il download
-	 * concorrente delle risorse.
+	 * Ritorna in ordine al più <code>searchPageSize</code> risorse il cui nome
+	 * corrisponde a <code>pattern</code> e che seguono la risorsa
+	 * <code>after</code>, oppure <code>null</code> se nessun server è
+	 * raggiungibile. Per scorrere i risultati basta passare come
+	 * <code>after</code> l'ultima risorsa della pagina precedente.
+	 * 
+	 * @param pattern
+	 * @param after
+	 * @throws RemoteException se anche il server di riserva non risponde
+	 * @see {@link server.Server#findResources(String, Resource, int)}
 	 */
-	class DownloadScheduler extends Thread {
-		private Client parent;
-		private ConcurrentHashMap<Client, AtomicBoolean> clientList;
-		private String[] resource;
-		private int parts;
-		private int[] downloadedParts;
-		private int previousListModelSize = 0;
+	public Vector<Resource> findResources(String pattern, Resource after) throws RemoteException {
+		if (server == null && !connectToServer()) {
+			return null;
+		}
+
+		try {
+			return server.findResources(pattern, after, searchPageSize);
+		} catch (RemoteException e) {
+			log("Il server non risponde. Provo con un altro...");
+			if (!connectToServer()) {
+				return null;
+			}
+			return server.findResources(pattern, after, searchPageSize);
+		}
+	}
+
+	/**
+	 * Avvia il download della risorsa <code>resource</code> dai client
+	 * <code>clientList</code>. Ritorna <code>null</code> se la risorsa è già
+	 * in download.
+	 * 
+	 * @param resource
+	 * @param clientList
+	 */
+	private Future<Boolean> startDownload(Resource resource, Vector<Client> clientList) {
+		DownloadScheduler download = new DownloadScheduler(clientList, resource);
+		if (activeDownloads.putIfAbsent(resource, download) != null) {
+			log("La risorsa " + resource + " è già in download");
+			return null;
+		}
+		schedulerExecutor.execute(download.future);
+		rebalanceDownloads();
+		return download.future;
+	}
+
+	/**
+	 * Ritorna le statistiche del client "client", creandole se non esistono.
+	 * 
+	 * @param client
+	 * @return SourceStats
+	 */
+	private SourceStats statsFor(Client client) {
+		SourceStats stats = sourceStats.get(client);
+		if (stats == null) {
+			SourceStats created = new SourceStats();
+			stats = sourceStats.putIfAbsent(client, created);
+			if (stats == null) {
+				stats = created;
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * Comunica al server le parti <code>parts</code> della risorsa
+	 * <code>resource</code> che il client può già inviare agli altri client.
+	 * 
+	 * @param resource
+	 * @param parts
+	 * @see {@link server.Server#updateParts(Client, Resource, BitSet)}
+	 */
+	private void advertiseParts(Resource resource, BitSet parts) {
+		Server current = server;
+		if (current == null) {
+			return;
+		}
+
+		try {
+			current.updateParts(this, resource, parts);
+		} catch (RemoteException e) {
+			logger.warning("Cannot advertise the parts of " + resource);
+		}
+	}
 
-		public DownloadScheduler(Vector<Client> clientList, String[] resource, Client parent) {
+	/**
+	 * Ritorna il numero massimo di parti che ciascun download può scaricare
+	 * contemporaneamente, ovvero la parte equa degli slot di download tra i
+	 * download in corso.
+	 */
+	private int fairShare() {
+		int downloads = Math.max(1, runningDownloads.get());
+		return (downloadCapacity + downloads - 1) / downloads;
+	}
+
+	/**
+	 * Risveglia gli scheduler in attesa affinché ricalcolino la propria
+	 * parte degli slot di download dopo l'avvio o la fine di un download.
+	 */
+	private void rebalanceDownloads() {
+		for (DownloadScheduler download : activeDownloads.values()) {
+			download.wakeUp();
+		}
+	}
+
+	/**
+	 * Thread che rinnova periodicamente il lease del client presso il server
+	 * a cui è connesso. Se il server non riconosce più il client, questo si
+	 * registra nuovamente; se il server non risponde, prova a connettersi a
+	 * un altro server.
+	 */
+	class HeartbeatThread extends Thread {
+
+		private HeartbeatThread() {
 			setDaemon(true);
-			this.parent = parent;
-			this.clientList = new ConcurrentHashMap<Client, AtomicBoolean>(clientList.size());
-			for (Client client : clientList) {
-				this.clientList.put(client, new AtomicBoolean(false));
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					sleep(heartbeatPeriod);
+				} catch (InterruptedException e) {
+					logger.warning("Sleep of HeartbeatThread interrupted.");
+				}
+
+				Server current = server;
+				if (current == null) {
+					continue;
+				}
+
+				try {
+					if (!current.renewLease(ClientImpl.this) && current == server) {
+						register(current);
+					}
+				} catch (RemoteException e) {
+					logger.warning("The server seems to be down. Trying to connect to another server...");
+					if (!connectToServer()) {
+						server = null;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Task che si occupa di assegnare le parti della risorsa ai client che la
+	 * possiedono e di sottomettere i relativi {@link DownloadTask} al pool di
+	 * download del client. Ritorna <code>true</code> se la risorsa è stata
+	 * scaricata completamente. Se il task viene cancellato, vengono
+	 * cancellati anche i download delle parti ancora in corso.
+	 * </p>
+	 * <p>
+	 * I client liberi sono mantenuti in una coda bloccante: lo scheduler
+	 * attende un client libero, sceglie tra le parti in attesa una parte che
+	 * il client possiede, attende uno slot di download e sottomette il task.
+	 * Mentre attende non consuma CPU. Al termine di un task la parte, se
+	 * fallita, torna tra le parti in attesa e il client torna nella coda dei
+	 * client liberi, a meno che non abbia fallito
+	 * <code>maxSourceFailures</code> volte consecutive. Un client che risponde
+	 * di non avere slot di upload liberi non viene penalizzato e torna tra i
+	 * client liberi dopo <code>busyRetryDelay</code> millisecondi.
+	 * </p>
+	 * <p>
+	 * Un client può possedere solo alcune parti della risorsa, se la sta a
+	 * sua volta scaricando. Se non possiede nessuna delle parti in attesa
+	 * viene parcheggiato finché un task non termina o finché, richiedendo di
+	 * nuovo le sue parti ogni <code>availabilityRefresh</code> millisecondi,
+	 * non risulta possederne di nuove. Se nessun task è in corso e nessun
+	 * client ottiene nuove parti per <code>partTimeout</code> millisecondi, il
+	 * download viene sospeso.
+	 * </p>
+	 * <p>
+	 * L'ordine dei client liberi e delle parti dipende da
+	 * <code>selectionStrategy</code>: i client liberi possono essere ordinati
+	 * per tempo atteso per parte e le parti per numero di client che le
+	 * possiedono.
+	 * </p>
+	 * <p>
+	 * Più download possono essere in corso contemporaneamente: ciascuno
+	 * scheduler non occupa più slot della propria parte equa, calcolata da
+	 * {@link ClientImpl#fairShare()}.
+	 * </p>
+	 * <p>
+	 * Ogni parte deve essere scaricata entro <code>partTimeout</code>
+	 * millisecondi, altrimenti viene considerata fallita e riassegnata.
+	 * Quando restano al più <code>endgameParts</code> parti, lo scheduler
+	 * entra in modalità endgame: le parti ancora in corso vengono richieste
+	 * in parallelo ai client liberi che non hanno parti in attesa, fino a
+	 * <code>endgameSources</code> richieste per parte, e al primo download
+	 * completato le richieste perdenti vengono annullate.
+	 * </p>
+	 */
+	class DownloadScheduler implements Callable<Boolean> {
+		private Vector<Client> clientList;
+		private Resource resource;
+		private int parts;
+		private Queue<Integer> pendingParts = new ConcurrentLinkedQueue<Integer>();
+		private Comparator<Integer> partOrder;
+		private BlockingQueue<Source> idleSources;
+		private Queue<Source> parkedSources = new ConcurrentLinkedQueue<Source>();
+		private int[] availability;
+		private AtomicIntegerArray partStates;
+		private AtomicInteger completedParts = new AtomicInteger(0);
+		private AtomicInteger liveSources = new AtomicInteger(0);
+		private AtomicInteger busySources = new AtomicInteger(0);
+		private FutureTask<Boolean> future = new FutureTask<Boolean>(this) {
+			@Override
+			protected void done() {
+				// cancelled while queued: call() will never run its cleanup
+				if (started.compareAndSet(false, true)) {
+					activeDownloads.remove(resource, DownloadScheduler.this);
+					rebalanceDownloads();
+				}
 			}
+		};
+
+		/**
+		 * Diventa <code>true</code> all'avvio dello scheduler o al suo
+		 * annullamento prima dell'avvio, così che la rimozione dai download
+		 * in corso sia eseguita una sola volta.
+		 */
+		private AtomicBoolean started = new AtomicBoolean(false);
+		private int inFlight = 0;
+
+		/**
+		 * File in cui vengono scritte le parti scaricate, <code>null</code>
+		 * se il download viene simulato.
+		 */
+		private volatile ResourceStorage.IncomingResource incoming;
+
+		/**
+		 * Task in esecuzione per ciascuna parte. Più task per la stessa
+		 * parte sono possibili solo in modalità endgame.
+		 */
+		private Map<Integer, List<DownloadTask>> runningTasks = new HashMap<Integer, List<DownloadTask>>();
+
+		/**
+		 * Task che scrive direttamente nel file ciascuna parte. Gli altri
+		 * task della stessa parte, cioè i duplicati dell'endgame, scaricano
+		 * in un buffer privato che viene copiato nel file solo se vincono.
+		 */
+		private ConcurrentMap<Integer, DownloadTask> regionWriters = new ConcurrentHashMap<Integer, DownloadTask>();
+
+		/**
+		 * Lock di ciascuna parte del file, che serializza le scritture del
+		 * task che la possiede e la copia del buffer del vincitore.
+		 */
+		private Object[] regionLocks;
+
+		/**
+		 * Valore sentinella che risveglia lo scheduler quando nessun client
+		 * risponde più.
+		 */
+		private final Source noSourcesLeft = new Source(null, null);
+
+		public DownloadScheduler(Vector<Client> clientList, Resource resource) {
+			this.clientList = clientList;
 			this.resource = resource;
-			this.parts = Integer.parseInt(resource[1]);
-			this.downloadedParts = new int[parts]; // all elements are 0 by default
+			this.parts = resource.getParts();
+			this.availability = new int[parts];
+			this.partStates = new AtomicIntegerArray(parts); // all parts are missing (0)
+			this.regionLocks = new Object[parts];
+			for (int i = 0; i < parts; i++) {
+				regionLocks[i] = new Object();
+			}
+
+			if (selectionStrategy == SelectionStrategy.RAREST_FIRST) {
+				this.partOrder = new Comparator<Integer>() {
+					public int compare(Integer a, Integer b) {
+						if (availability[a] != availability[b]) {
+							return availability[a] < availability[b] ? -1 : 1;
+						}
+						return a - b;
+					}
+				};
+			}
+
+			if (selectionStrategy == SelectionStrategy.FIRST_IDLE) {
+				this.idleSources = new LinkedBlockingQueue<Source>();
+			} else {
+				this.idleSources = new PriorityBlockingQueue<Source>(Math.max(1, clientList.size()), new Comparator<Source>() {
+					public int compare(Source a, Source b) {
+						if (a == noSourcesLeft || b == noSourcesLeft) {
+							return a == b ? 0 : (a == noSourcesLeft ? -1 : 1);
+						}
+						return Double.compare(a.score, b.score);
+					}
+				});
+			}
 		}
 
 		@Override
-		public void run() {			
-			int maxConcurrentDownload = min(new int[] { clientList.size(), downloadCapacity, parts });
-			Client lastClientAssigned = null;
+		public Boolean call() {
+			if (!started.compareAndSet(false, true)) {
+				return false;
+			}
 
-			DefaultListModel downloadListModel = (DefaultListModel) clientGUI.getModelListDownload();
+			boolean downloaded = false;
+			runningDownloads.incrementAndGet();
+			rebalanceDownloads();
+			for (ClientListener listener : listeners) {
+				listener.downloadStarted(resource, parts);
+			}
+			try {
+				downloaded = schedule();
+				return downloaded;
+			} catch (InterruptedException e) {
+				log("Download della risorsa " + resource + " annullato");
+				return false;
+			} finally {
+				cancelRunningTasks();
+				if (!downloaded && incoming != null) {
+					// keep the verified parts for a later resume
+					incoming.suspend();
+				}
+				if (!downloaded && completedParts.get() > 0) {
+					advertiseParts(resource, new BitSet());
+				}
+				runningDownloads.decrementAndGet();
+				activeDownloads.remove(resource, this);
+				for (ClientListener listener : listeners) {
+					listener.downloadFinished(resource, downloaded);
+				}
+				rebalanceDownloads();
+			}
+		}
 
-			downloadListModel.clear();
-			downloadListModel.setSize(parts);
+		/**
+		 * Annulla il download interrompendo lo scheduler.
+		 */
+		public void cancel() {
+			future.cancel(true);
+		}
 
-			while (countOnes(downloadedParts) < parts && !clientList.isEmpty()) {
+		/**
+		 * Ritorna le parti già scaricate che possono essere inviate agli
+		 * altri client. Se la risorsa viene scritta su file sono considerate
+		 * solo le parti già verificate e salvate.
+		 */
+		public BitSet getAvailableParts() {
+			BitSet available = new BitSet(parts);
+			ResourceStorage.IncomingResource current = incoming;
+			for (int i = 0; i < parts; i++) {
+				if (current != null ? current.isComplete(i) : partStates.get(i) == 1) {
+					available.set(i);
+				}
+			}
+			return available;
+		}
 
-				synchronized (currentDownloading) {
+		/**
+		 * Interroga in parallelo i client della lista e ritorna, nell'ordine
+		 * della lista, le risposte dei client che hanno risposto entro
+		 * <code>partTimeout</code> millisecondi.
+		 */
+		private List<Probe> probeSources() throws InterruptedException {
+			List<Probe> probes = new ArrayList<Probe>(clientList.size());
+			for (Client client : clientList) {
+				probes.add(new Probe(client));
+			}
 
-					while (currentDownloading.get() >= maxConcurrentDownload) {
-						try {
-							currentDownloading.wait();
-						} catch (InterruptedException e) {
-							System.out.println("DownloadScheduler.wait() interrupted");
-						}
+			List<Probe> answered = new ArrayList<Probe>(probes.size());
+			// the scheduler pool is bounded and may be full of schedulers
+			for (Future<Probe> future : downloadExecutor.invokeAll(probes, partTimeout, TimeUnit.MILLISECONDS)) {
+				try {
+					answered.add(future.get());
+				} catch (CancellationException e) {
+					logger.warning("Client did not answer in time");
+				} catch (ExecutionException e) {
+					logger.warning("Client is unreachable");
+				}
+			}
+			return answered;
+		}
+
+		/**
+		 * Richieste iniziali a un client della lista: la dimensione e le
+		 * impronte della risorsa, il nome, l'indirizzo del canale dati e le
+		 * parti possedute.
+		 */
+		class Probe implements Callable<Probe> {
+			private Client client;
+			private String name;
+			private long size = -1;
+			private byte[][] digests;
+			private InetSocketAddress endpoint;
+			private BitSet available;
+
+			public Probe(Client client) {
+				this.client = client;
+			}
+
+			@Override
+			public Probe call() throws RemoteException {
+				if (storage != null) {
+					size = client.getResourceSize(resource);
+					if (size >= 0) {
+						digests = client.getPartDigests(resource);
+					}
+					endpoint = client.getDataEndpoint();
+				}
+				name = client.getClientName();
+				available = client.getAvailableParts(resource);
+				return this;
+			}
+		}
+
+		/**
+		 * Risveglia lo scheduler se è in attesa che la sua parte equa degli
+		 * slot di download aumenti.
+		 */
+		public synchronized void wakeUp() {
+			notifyAll();
+		}
+
+		private boolean schedule() throws InterruptedException {
+			long size = -1;
+			List<byte[][]> digestVotes = new ArrayList<byte[][]>();
+			List<Source> sources = new ArrayList<Source>();
+			for (Probe probe : probeSources()) {
+				if (storage != null) {
+					if (size < 0) {
+						size = probe.size;
+					}
+					if (probe.size >= 0 && probe.size == size && probe.digests != null) {
+						digestVotes.add(probe.digests);
 					}
+				}
+
+				Source source = new Source(probe.client, probe.name);
+				source.endpoint = probe.endpoint;
+				source.addParts(probe.available);
+				sources.add(source);
+			}
+
+			if (size >= 0) {
+				try {
+					incoming = storage.create(resource, size, agreedDigests(digestVotes));
+				} catch (IOException e) {
+					logger.warning("Cannot create the file of the resource. The download will be simulated");
+				}
+			}
 
-					int partToDownload = -1;
+			// scores depend on the part length, known only once the file exists
+			for (Source source : sources) {
+				source.makeIdle();
+				liveSources.incrementAndGet();
+			}
+
+			for (int i = 0; i < parts; i++) {
+				if (incoming != null && incoming.isComplete(i)) {
+					// verified before the previous download was interrupted
+					partStates.set(i, 1);
+					completedParts.incrementAndGet();
+					firePartChanged(resource, i, null, "ripreso");
+				} else {
+					pendingParts.add(i);
+				}
+			}
+			if (completedParts.get() > 0) {
+				log("Riprendo il download della risorsa " + resource + " da " + completedParts.get() + " parti su "
+						+ parts);
+				advertiseParts(resource, getAvailableParts());
+			}
 
+			long stalledSince = System.currentTimeMillis();
+			int stalledCompleted = completedParts.get();
+			while (liveSources.get() > 0 && completedParts.get() < parts) {
+				Source source = idleSources.poll(availabilityRefresh, TimeUnit.MILLISECONDS);
+				if (source == null) {
+					// no idle client holds a missing part: ask the parked ones again
+					long now = System.currentTimeMillis();
+					if (refreshParkedSources() || tasksInFlight() > 0 || busySources.get() > 0
+							|| completedParts.get() != stalledCompleted) {
+						stalledCompleted = completedParts.get();
+						stalledSince = now;
+					} else if (now - stalledSince >= partTimeout) {
+						break;
+					}
+					continue;
+				}
+				if (source == noSourcesLeft) {
+					break;
+				}
+
+				int part = nextPart(source);
+				if (part < 0 && source.refreshParts()) {
+					part = nextPart(source);
+				}
+				if (part < 0 && isEndgame()) {
+					part = endgamePart(source);
+				}
+				if (part < 0) {
+					// nothing to download from this client for now
+					parkedSources.add(source);
+					continue;
+				}
+
+				dispatch(source, part);
+			}
+
+			if (completedParts.get() == parts) {
+				if (incoming != null) {
 					try {
-						// search the first part not downloaded yet
-						for (int i = 0; i < downloadedParts.length
-								&& partToDownload == -1; i++) {
-							if (downloadedParts[i] == 0) {
-								partToDownload = i;
-
-								// search the first not busy client
-								Iterator<?> it = clientList.entrySet().iterator();
-								boolean found = false;
-								while (it.hasNext() && !found) {
-									Map.Entry<Client, AtomicBoolean> pairs = (Entry<Client, AtomicBoolean>) it.next();
-									if (((AtomicBoolean) pairs.getValue()).get() == false) {
-										found = true;
-										pairs.getValue().set(true);
-										lastClientAssigned = pairs.getKey();
-										downloadedParts[partToDownload] = -1; // set to -1 to "lock" the part
-										currentDownloading.incrementAndGet();
-										new DownloadThread(lastClientAssigned,
-												resource, partToDownload)
-												.start();
-									}
-								}
-							}
-						}
+						incoming.complete();
+					} catch (IOException e) {
+						log("Non è stato possibile salvare la risorsa " + resource);
+						return false;
+					}
+				}
+
+				log("Risorsa scaricata");
+				addResource(this.resource);
+				return true;
+			}
+
+			log("Non è stato possibile scaricare la risorsa. Forse nessun client risponde");
+			return false;
+		}
+
+		/**
+		 * Attende che lo scheduler possa occupare un altro slot di download e
+		 * sottomette il download della parte <code>part</code> dal client
+		 * <code>source</code>.
+		 */
+		private void dispatch(Source source, int part) throws InterruptedException {
+			synchronized (this) {
+				while (inFlight >= fairShare()) {
+					wait();
+				}
+				inFlight++;
+			}
+
+			downloadSlots.acquire();
+			DownloadTask task = new DownloadTask(source, resource, part);
+			synchronized (runningTasks) {
+				List<DownloadTask> tasks = runningTasks.get(part);
+				if (tasks == null) {
+					tasks = new ArrayList<DownloadTask>(endgameSources);
+					runningTasks.put(part, tasks);
+				}
+				tasks.add(task);
+			}
+			task.submit();
+		}
+
+		/**
+		 * Toglie dalle parti in attesa e ritorna la prima parte, secondo
+		 * <code>partOrder</code>, posseduta dal client <code>source</code>,
+		 * oppure -1 se il client non possiede nessuna delle parti in attesa.
+		 */
+		private int nextPart(Source source) {
+			Integer best = null;
+			for (Iterator<Integer> iterator = pendingParts.iterator(); iterator.hasNext();) {
+				Integer part = iterator.next();
+				if (partStates.get(part) == 1) {
+					iterator.remove();
+					continue;
+				}
+				if (!source.hasPart(part)) {
+					continue;
+				}
+
+				if (best == null || partOrder != null && partOrder.compare(part, best) < 0) {
+					best = part;
+				}
+				if (partOrder == null) {
+					break;
+				}
+			}
+
+			if (best == null || !pendingParts.remove(best)) {
+				return -1;
+			}
+			return best;
+		}
 
-					} catch (RemoteException e) {
-						currentDownloading.decrementAndGet();
-						downloadedParts[partToDownload] = 0;
-						System.out.println("Error while creating a DownloadThread. Client is unreachable");
-						clientList.remove(lastClientAssigned);
+		/**
+		 * Richiede di nuovo le parti possedute dai client parcheggiati e
+		 * rimette nella coda dei client liberi quelli che ne hanno di nuove.
+		 * Ritorna <code>true</code> se almeno un client ha nuove parti.
+		 */
+		private boolean refreshParkedSources() {
+			boolean refreshed = false;
+			for (Iterator<Source> iterator = parkedSources.iterator(); iterator.hasNext();) {
+				Source source = iterator.next();
+				if (source.refreshParts()) {
+					iterator.remove();
+					source.makeIdle();
+					refreshed = true;
+				}
+			}
+			return refreshed;
+		}
+
+		/**
+		 * Rimette nella coda dei client liberi tutti i client parcheggiati,
+		 * poiché al termine di un task potrebbero esserci nuove parti in
+		 * attesa o parti da duplicare in modalità endgame.
+		 */
+		private void unparkSources() {
+			Source source;
+			while ((source = parkedSources.poll()) != null) {
+				source.makeIdle();
+			}
+		}
+
+		private synchronized int tasksInFlight() {
+			return inFlight;
+		}
+
+		/**
+		 * Ritorna per ogni parte l'impronta dichiarata dal maggior numero di
+		 * client tra quelle in <code>votes</code>, così che un singolo client
+		 * con un file corrotto non possa imporre le proprie impronte. Le
+		 * impronte malformate, con un numero di parti o una lunghezza
+		 * sbagliati, vengono scartate prima del voto perché alterebbero il
+		 * file dei metadati. Ritorna <code>null</code> se nessun client ha
+		 * inviato impronte valide.
+		 */
+		private byte[][] agreedDigests(List<byte[][]> votes) {
+			List<byte[][]> valid = new ArrayList<byte[][]>(votes.size());
+			for (byte[][] vote : votes) {
+				if (ResourceStorage.isValidDigests(vote, parts)) {
+					valid.add(vote);
+				} else {
+					logger.warning("Discarded malformed part digests");
+				}
+			}
+			if (valid.isEmpty()) {
+				return null;
+			}
+
+			byte[][] agreed = new byte[parts][];
+			for (int i = 0; i < parts; i++) {
+				int bestCount = 0;
+				for (byte[][] candidate : valid) {
+					int count = 0;
+					for (byte[][] vote : valid) {
+						if (Arrays.equals(candidate[i], vote[i])) {
+							count++;
+						}
+					}
+					if (count > bestCount) {
+						bestCount = count;
+						agreed[i] = candidate[i];
 					}
 				}
 			}
+			return agreed;
+		}
 
-			if (countOnes(downloadedParts) == parts) {
-				addResource(new Resource(this.resource[0], this.parts));
-				clientGUI.appendLog("Risorsa scaricata");
-				try {
-					server.updateResources(parent);
-				} catch (RemoteException e) {
-					System.out.println("Server seems to be down");
-					clientGUI.appendLog("Non è stato possibile comunicare al server la disponibilità della nuova risorsa");
+		/**
+		 * Ritorna <code>true</code> se restano da scaricare al più
+		 * <code>endgameParts</code> parti.
+		 */
+		private boolean isEndgame() {
+			return parts - completedParts.get() <= endgameParts;
+		}
+
+		/**
+		 * Ritorna la parte in corso di download con meno richieste che può
+		 * essere richiesta anche al client <code>source</code>, oppure -1 se
+		 * non ce ne sono.
+		 */
+		private int endgamePart(Source source) {
+			int best = -1;
+			int bestRequests = endgameSources;
+
+			synchronized (runningTasks) {
+				for (Map.Entry<Integer, List<DownloadTask>> entry : runningTasks.entrySet()) {
+					int part = entry.getKey();
+					List<DownloadTask> tasks = entry.getValue();
+					if (tasks.size() >= bestRequests || partStates.get(part) == 1 || !source.hasPart(part)) {
+						continue;
+					}
+
+					boolean alreadyRequested = false;
+					for (DownloadTask task : tasks) {
+						alreadyRequested |= task.source == source;
+					}
+					if (!alreadyRequested) {
+						best = part;
+						bestRequests = tasks.size();
+					}
 				}
-			} else {
-				clientGUI.appendLog("Non è stato possibile scaricare la risorsa. Forse nessun client risponde");
 			}
+
+			return best;
 		}
 
-		private int min(int[] values) {
-			int min = Integer.MAX_VALUE;
-			for (int i = 0; i < values.length; i++) {
-				if (values[i] < min) {
-					min = values[i];
+		/**
+		 * Annulla tutti i task della parte <code>part</code> ancora in
+		 * esecuzione.
+		 */
+		private void cancelTasks(int part) {
+			List<DownloadTask> tasks;
+			synchronized (runningTasks) {
+				tasks = runningTasks.get(part);
+				if (tasks == null) {
+					return;
 				}
+				tasks = new ArrayList<DownloadTask>(tasks);
+			}
+
+			for (DownloadTask task : tasks) {
+				task.cancel();
 			}
-			return min;
 		}
 
-		private int countOnes(int[] values) {
-			int count = 0;
-			for (int val : values) {
-				count += (val == 1 ? 1 : 0);
+		private void cancelRunningTasks() {
+			List<Integer> running;
+			synchronized (runningTasks) {
+				running = new ArrayList<Integer>(runningTasks.keySet());
+			}
+
+			for (int part : running) {
+				cancelTasks(part);
 			}
-			return count;
 		}
 
-		class DownloadThread extends Thread {
+		/**
+		 * Client da cui scaricare le parti della risorsa.
+		 */
+		class Source {
 			private Client client;
-			private String[] resource;
+			private String name;
+			private SourceStats stats;
+
+			/**
+			 * Indirizzo del canale dati del client, <code>null</code> se le
+			 * parti devono essere scaricate tramite RMI.
+			 */
+			private InetSocketAddress endpoint;
+
+			/**
+			 * Tempo atteso per parte al momento dell'inserimento nella coda
+			 * dei client liberi, fissato per non alterare l'ordine della coda.
+			 */
+			private double score;
+
+			public Source(Client client, String name) {
+				this.client = client;
+				this.name = name;
+				this.stats = client != null ? statsFor(client) : null;
+			}
+
+			/**
+			 * Parti della risorsa possedute dal client, accedute solo dal
+			 * thread dello scheduler.
+			 */
+			private BitSet available = new BitSet();
+
+			/**
+			 * Ritorna <code>true</code> se il client possiede la parte
+			 * <code>part</code> della risorsa.
+			 * @param part
+			 */
+			public boolean hasPart(int part) {
+				return available.get(part);
+			}
+
+			/**
+			 * Richiede al client le parti della risorsa che possiede e
+			 * aggiorna il numero di client che possiedono ciascuna parte.
+			 * Ritorna <code>true</code> se il client possiede nuove parti.
+			 */
+			public boolean refreshParts() {
+				if (available.cardinality() == parts) {
+					return false;
+				}
+
+				try {
+					return addParts(client.getAvailableParts(resource));
+				} catch (RemoteException e) {
+					return false;
+				}
+			}
+
+			/**
+			 * Aggiunge le parti <code>fresh</code> a quelle possedute dal
+			 * client e aggiorna il numero di client che possiedono ciascuna
+			 * parte. Ritorna <code>true</code> se il client possiede nuove
+			 * parti.
+			 * @param fresh
+			 */
+			public boolean addParts(BitSet fresh) {
+				boolean gained = false;
+				for (int i = fresh.nextSetBit(0); i >= 0 && i < parts; i = fresh.nextSetBit(i + 1)) {
+					if (!available.get(i)) {
+						available.set(i);
+						availability[i]++;
+						gained = true;
+					}
+				}
+				return gained;
+			}
+
+			/**
+			 * Inserisce il client nella coda dei client liberi.
+			 */
+			public void makeIdle() {
+				score = stats.getScore(incoming != null ? incoming.getPartLength(0) : 0, partTimeout);
+				idleSources.add(this);
+			}
+		}
+
+		/**
+		 * Task che scarica una parte della risorsa da un client. Viene
+		 * eseguito da uno dei thread del pool di download del client.
+		 * Il task termina una sola volta, quando il download riesce o
+		 * fallisce, quando scade il tempo a disposizione o quando viene
+		 * annullato; gli esiti successivi vengono ignorati.
+		 */
+		class DownloadTask implements Runnable {
+			private Source source;
+			private Resource resource;
 			private int part;
 			private String clientName;
+			private Future<?> future;
+			private ScheduledFuture<?> deadline;
+			private AtomicBoolean finished = new AtomicBoolean(false);
 
-			public DownloadThread(Client client, String[] resource, int part)
-					throws RemoteException {
-				setDaemon(true);
-				this.client = client;
+			/**
+			 * Buffer privato in cui viene scaricata la parte se un altro task
+			 * ne possiede già la regione del file, altrimenti
+			 * <code>null</code>.
+			 */
+			private ByteBuffer buffer;
+
+			public DownloadTask(Source source, Resource resource, int part) {
+				this.source = source;
 				this.resource = resource;
 				this.part = part;
+				this.clientName = source.name;
+			}
 
-				// may throw RemoteException
-				this.clientName = client.getClientName();
+			/**
+			 * Sottomette il task al pool di download del client e ne
+			 * pianifica la scadenza.
+			 */
+			public void submit() {
+				future = downloadExecutor.submit(this);
+				deadline = timeoutExecutor.schedule(new Runnable() {
+					public void run() {
+						expire();
+					}
+				}, partTimeout, TimeUnit.MILLISECONDS);
+			}
+
+			/**
+			 * Annulla il task, interrompendolo se è in esecuzione, e rimette
+			 * il client nella coda dei client liberi.
+			 */
+			public void cancel() {
+				if (finish()) {
+					if (future != null) {
+						future.cancel(true);
+					}
+					source.makeIdle();
+				}
 			}
 
 			@Override
 			public void run() {
-				clientGUI.appendLog("Scarico " + resource[0] + " parte " + part + " da " + clientName);
-				DefaultListModel downloadListModel = (DefaultListModel) clientGUI.getModelListDownload();
-				downloadListModel.set(part + previousListModelSize, resource[0] + ":" + part + " " + clientName + " ");
+				log(Log.Level.DEBUG, "Scarico " + resource.getName() + " parte " + part + " da " + clientName);
+				firePartChanged(resource, part, clientName, null);
+				long start = System.currentTimeMillis();
+				if (incoming != null && regionWriters.putIfAbsent(part, this) != null) {
+					buffer = ByteBuffer.allocate((int) incoming.getPartLength(part));
+				}
 				try {
-					downloadListModel.set(part + previousListModelSize, resource[0] + ":" + part + " " + clientName + " [in corso]");
-					client.download();
-					downloadedParts[part] = 1;
-					clientList.get(client).set(false);
-					downloadListModel.set(part + previousListModelSize, resource[0] + ":" + part + " " + clientName + " [completato]");
-					synchronized (currentDownloading) {
-						currentDownloading.decrementAndGet();
-						currentDownloading.notifyAll();
+					firePartChanged(resource, part, clientName, "in corso");
+					long bytes = 0;
+					if (incoming != null && source.endpoint != null) {
+						bytes = receive();
+					} else if (incoming != null) {
+						bytes = transfer();
+					} else {
+						source.client.download(ClientImpl.this.clientName);
+					}
+
+					if (incoming != null && !verify()) {
+						fail("corrotto");
+					} else {
+						succeed(System.currentTimeMillis() - start, bytes);
 					}
+				} catch (BusyException e) {
+					busy();
 				} catch (Exception e) {
-					downloadListModel.set(part + previousListModelSize, resource[0] + ":" + part + " " + clientName + " [fallito]");
-					clientGUI.appendLog("Download " + resource[0] + " parte " + part + " da " + clientName + " fallito");
-					downloadedParts[part] = 0;
-					clientList.get(client).set(false);
-					synchronized (currentDownloading) {
-						currentDownloading.decrementAndGet();
-						currentDownloading.notifyAll();
+					fail("fallito");
+				} finally {
+					regionWriters.remove(part, this);
+				}
+			}
+
+			/**
+			 * Scarica la parte dal canale dati del client, trasferendo i byte
+			 * direttamente dal socket al file della risorsa, o al buffer
+			 * privato, a blocchi di al più <code>chunkSize</code> byte. Il
+			 * trasferimento si interrompe tra un blocco e l'altro se il task è
+			 * terminato. Ritorna il numero di byte trasferiti.
+			 */
+			private long receive() throws IOException, InterruptedException, BusyException {
+				SocketChannel channel = SocketChannel.open(source.endpoint);
+				try {
+					long length = incoming.getPartLength(part);
+					DataServer.writeRequest(channel, ClientImpl.this.clientName, resource, part, 0, length);
+					if (DataServer.readLength(channel) != length) {
+						throw new IOException("Parte " + part + " non disponibile su " + clientName);
+					}
+
+					long offset = 0;
+					while (offset < length) {
+						if (finished.get() || Thread.interrupted()) {
+							throw new InterruptedException();
+						}
+						long count = Math.min(chunkSize, length - offset);
+						if (buffer != null) {
+							buffer.limit((int) (offset + count));
+							int received = channel.read(buffer);
+							if (received < 0) {
+								throw new IOException("Connessione chiusa da " + clientName);
+							}
+							offset += received;
+							continue;
+						}
+
+						// an interrupt from cancel() closes the channel and releases the lock
+						synchronized (regionLocks[part]) {
+							checkRegion();
+							offset += incoming.receive(part, offset, channel, count);
+						}
+					}
+
+					return length;
+				} finally {
+					channel.close();
+				}
+			}
+
+			/**
+			 * Scarica la parte tramite RMI a blocchi di al più
+			 * <code>chunkSize</code> byte e la scrive nel file della risorsa,
+			 * o nel buffer privato. Il trasferimento si interrompe tra un
+			 * blocco e l'altro se il task è terminato. Il client impegna uno
+			 * slot di upload per ogni blocco: se risulta occupato dopo il primo
+			 * blocco, il blocco viene richiesto di nuovo dopo
+			 * <code>busyRetryDelay</code> millisecondi senza perdere quelli già
+			 * ricevuti, entro il tempo a disposizione per la parte.
+			 * Ritorna il numero di byte trasferiti.
+			 */
+			private long transfer() throws RemoteException, IOException, InterruptedException, BusyException {
+				long length = incoming.getPartLength(part);
+				long offset = 0;
+
+				while (offset < length) {
+					if (finished.get() || Thread.interrupted()) {
+						throw new InterruptedException();
+					}
+
+					byte[] chunk;
+					try {
+						chunk = source.client.downloadChunk(ClientImpl.this.clientName, resource, part, offset,
+								(int) Math.min(chunkSize, length - offset));
+					} catch (BusyException e) {
+						if (offset == 0) {
+							throw e;
+						}
+						// resume from the current offset; expire() interrupts the wait
+						firePartChanged(resource, part, clientName, "in attesa");
+						Thread.sleep(busyRetryDelay);
+						firePartChanged(resource, part, clientName, "in corso");
+						continue;
+					}
+					if (chunk.length == 0) {
+						throw new IOException("Blocco vuoto ricevuto da " + clientName);
+					}
+					if (buffer != null) {
+						buffer.position((int) offset);
+						buffer.put(chunk);
+					} else {
+						synchronized (regionLocks[part]) {
+							checkRegion();
+							incoming.write(part, offset, chunk);
+						}
+					}
+					offset += chunk.length;
+				}
+
+				return length;
+			}
+
+			/**
+			 * Verifica l'impronta della parte scaricata, nel buffer privato o
+			 * nel file della risorsa.
+			 */
+			private boolean verify() {
+				if (buffer != null) {
+					return incoming.verify(part, (ByteBuffer) buffer.duplicate().clear());
+				}
+				return incoming.verify(part);
+			}
+
+			/**
+			 * Interrompe il trasferimento nella regione del file se il task è
+			 * terminato o se un altro task ha già completato la parte. Deve
+			 * essere chiamato con il lock della regione.
+			 */
+			private void checkRegion() throws InterruptedException {
+				if (finished.get() || partStates.get(part) != 0) {
+					throw new InterruptedException();
+				}
+			}
+
+			/**
+			 * Chiamato allo scadere del tempo a disposizione per la parte.
+			 */
+			private void expire() {
+				if (fail("scaduto")) {
+					future.cancel(true);
+				}
+			}
+
+			private void succeed(long millis, long bytes) {
+				if (!finish()) {
+					return;
+				}
+
+				source.stats.recordSuccess(millis, bytes);
+				uploadSlots.reciprocate(source.name);
+				if (partStates.compareAndSet(part, 0, 1)) {
+					// cancel the losers of the endgame before touching the region they may own
+					cancelTasks(part);
+					if (incoming != null) {
+						try {
+							if (buffer != null) {
+								synchronized (regionLocks[part]) {
+									incoming.write(part, 0, buffer.array());
+								}
+							}
+							incoming.markComplete(part);
+						} catch (IOException e) {
+							log(Log.Level.ERROR, "Impossibile scrivere " + resource.getName() + " parte " + part);
+							partStates.set(part, 0);
+							requeue();
+							source.makeIdle();
+							unparkSources();
+							return;
+						}
+					}
+					firePartChanged(resource, part, clientName, "completato");
+
+					if (completedParts.incrementAndGet() < parts) {
+						advertiseParts(resource, getAvailableParts());
 					}
 				}
+
+				source.makeIdle();
+				unparkSources();
+			}
+
+			/**
+			 * Registra il fallimento del task con il motivo
+			 * <code>reason</code> e rimette la parte nella coda delle parti
+			 * se nessun altro task la sta scaricando. Ritorna
+			 * <code>false</code> se il task era già terminato.
+			 */
+			private boolean fail(String reason) {
+				if (!finish()) {
+					return false;
+				}
+
+				source.stats.recordFailure();
+				firePartChanged(resource, part, clientName, reason);
+				log(Log.Level.WARNING, "Download " + resource.getName() + " parte " + part + " da " + clientName + " " + reason);
+				requeue();
+
+				if (source.stats.getConsecutiveFailures() < maxSourceFailures) {
+					source.makeIdle();
+				} else if (liveSources.decrementAndGet() == 0) {
+					idleSources.add(noSourcesLeft);
+				}
+
+				unparkSources();
+				return true;
+			}
+
+			/**
+			 * Chiamato quando il client non ha slot di upload liberi. La
+			 * parte torna tra le parti in attesa e il client, senza essere
+			 * penalizzato, torna nella coda dei client liberi dopo
+			 * <code>busyRetryDelay</code> millisecondi.
+			 */
+			private void busy() {
+				if (!finish()) {
+					return;
+				}
+
+				firePartChanged(resource, part, clientName, "occupato");
+				requeue();
+
+				busySources.incrementAndGet();
+				timeoutExecutor.schedule(new Runnable() {
+					public void run() {
+						busySources.decrementAndGet();
+						source.makeIdle();
+					}
+				}, busyRetryDelay, TimeUnit.MILLISECONDS);
+				unparkSources();
+			}
+
+			/**
+			 * Rimette la parte tra le parti in attesa se non è stata
+			 * completata e nessun altro task la sta scaricando.
+			 */
+			private void requeue() {
+				synchronized (runningTasks) {
+					if (partStates.get(part) == 0 && !runningTasks.containsKey(part)) {
+						pendingParts.add(part);
+					}
+				}
+			}
+
+			/**
+			 * Segna il task come terminato e libera lo slot di download
+			 * occupato. Ritorna <code>false</code> se il task era già
+			 * terminato.
+			 */
+			private boolean finish() {
+				if (!finished.compareAndSet(false, true)) {
+					return false;
+				}
+
+				if (deadline != null) {
+					deadline.cancel(false);
+				}
+
+				synchronized (runningTasks) {
+					List<DownloadTask> tasks = runningTasks.get(part);
+					if (tasks != null) {
+						tasks.remove(this);
+						if (tasks.isEmpty()) {
+							runningTasks.remove(part);
+						}
+					}
+				}
+
+				downloadSlots.release();
+				synchronized (DownloadScheduler.this) {
+					inFlight--;
+					DownloadScheduler.this.notifyAll();
+				}
+				return true;
 			}
 		}
 	}
@@ -0,0 +1,60 @@
+package client;
+
+import java.util.Vector;
+
+import share.Resource;
+
+/**
+ * <p>
+ * Osservatore dello stato di un client. I metodi vengono chiamati dai thread
+ * del client, anche contemporaneamente, e non devono quindi bloccare:
+ * un'interfaccia grafica deve rimandare gli aggiornamenti al thread di
+ * event-dispatching.
+ * </p>
+ * <p>
+ * Senza osservatori registrati il client non esegue alcun lavoro per
+ * notificare il proprio stato.
+ * </p>
+ * @see {@link ClientImpl#addClientListener(ClientListener)}
+ */
+public interface ClientListener {
+
+	/**
+	 * Chiamato per ogni messaggio destinato all'utente.
+	 * @param message
+	 */
+	public void logged(String message);
+
+	/**
+	 * Chiamato quando cambia la lista delle risorse possedute dal client.
+	 * @param resources copia della lista delle risorse
+	 */
+	public void resourcesChanged(Vector<Resource> resources);
+
+	/**
+	 * Chiamato all'avvio del download delle <code>parts</code> parti della
+	 * risorsa <code>resource</code>.
+	 * @param resource
+	 * @param parts
+	 */
+	public void downloadStarted(Resource resource, int parts);
+
+	/**
+	 * Chiamato quando cambia lo stato del download della parte
+	 * <code>part</code> della risorsa <code>resource</code>.
+	 * @param resource
+	 * @param part
+	 * @param source nome del client da cui viene scaricata la parte, oppure
+	 * <code>null</code>
+	 * @param state stato della parte, oppure <code>null</code> se la parte
+	 * è appena stata assegnata al client <code>source</code>
+	 */
+	public void partChanged(Resource resource, int part, String source, String state);
+
+	/**
+	 * Chiamato al termine del download della risorsa <code>resource</code>.
+	 * @param resource
+	 * @param downloaded <code>true</code> se la risorsa è stata scaricata
+	 */
+	public void downloadFinished(Resource resource, boolean downloaded);
+}
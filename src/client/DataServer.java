@@ -0,0 +1,269 @@
+package client;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import share.BusyException;
+import share.DaemonThreadFactory;
+import share.Log;
+import share.Resource;
+
+/**
+ * <p>
+ * Thread che serve le parti delle risorse di un client su un canale dati
+ * separato da RMI. I client si scambiano tramite RMI solo i messaggi di
+ * controllo e l'indirizzo del canale dati, mentre i byte delle parti sono
+ * trasferiti direttamente dal file della risorsa al socket con
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, senza
+ * passare per la serializzazione di Java.
+ * </p>
+ * <p>
+ * Su una connessione possono essere inviate più richieste in sequenza. Ogni
+ * richiesta è composta da lunghezza e nome in UTF-8 del client richiedente,
+ * lunghezza e nome della risorsa, numero di parti, parte, posizione
+ * all'interno della parte e numero di byte richiesti. La risposta è il
+ * numero di byte inviati, -1 se la parte non è disponibile o -2 se non ci
+ * sono slot di upload liberi, seguito dai byte stessi. Sono servite solo le
+ * risorse possedute dal client e le parti già completate delle risorse
+ * ancora in download; il canale accetta connessioni solo sull'indirizzo
+ * indicato alla creazione.
+ * </p>
+ */
+public class DataServer extends Thread {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MAX_NAME_LENGTH = 4096;
+	private static final long UNAVAILABLE = -1;
+	private static final long BUSY = -2;
+	private ResourceStorage storage;
+	private UploadSlots uploadSlots;
+	private Collection<Resource> sharedResources;
+	private ServerSocketChannel serverChannel;
+	private ExecutorService connectionExecutor;
+	private Log logger;
+
+	/**
+	 * @param storage archivio delle risorse
+	 * @param uploadSlots slot di upload del client
+	 * @param clientName nome del client
+	 * @param host indirizzo su cui accettare le connessioni
+	 * @param sharedResources risorse complete possedute dal client, le sole
+	 * servite oltre a quelle in download
+	 * @throws IOException
+	 */
+	public DataServer(ResourceStorage storage, UploadSlots uploadSlots, String clientName, String host,
+			Collection<Resource> sharedResources) throws IOException {
+		setDaemon(true);
+		this.storage = storage;
+		this.uploadSlots = uploadSlots;
+		this.sharedResources = sharedResources;
+		this.logger = new Log(clientName);
+		this.serverChannel = ServerSocketChannel.open();
+		this.serverChannel.socket().bind(new InetSocketAddress(host, 0));
+		this.connectionExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory(clientName + "-data"));
+	}
+
+	/**
+	 * Ritorna la porta su cui il canale dati accetta le connessioni.
+	 * @return int
+	 */
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				final SocketChannel channel = serverChannel.accept();
+				connectionExecutor.execute(new Runnable() {
+					public void run() {
+						serve(channel);
+					}
+				});
+			} catch (IOException e) {
+				logger.info("Data channel closed");
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Serve le richieste ricevute sulla connessione <code>channel</code>
+	 * finché il client non la chiude.
+	 */
+	private void serve(SocketChannel channel) {
+		try {
+			ByteBuffer header = ByteBuffer.allocate(4);
+			while (readFully(channel, header, true)) {
+				header.flip();
+				String requester = readString(channel, header.getInt());
+				header.clear();
+				readFully(channel, header, false);
+				header.flip();
+				String name = readString(channel, header.getInt());
+				header.clear();
+
+				ByteBuffer request = ByteBuffer.allocate(24);
+				readFully(channel, request, false);
+				request.flip();
+				Resource resource = new Resource(name, request.getInt());
+				int part = request.getInt();
+				long offset = request.getLong();
+				long length = request.getLong();
+
+				UploadSlots.Permit permit = uploadSlots.acquire(requester);
+				if (permit == null) {
+					writeLength(channel, BUSY);
+					continue;
+				}
+				try {
+					sendPart(channel, resource, part, offset, length);
+				} finally {
+					permit.release();
+				}
+			}
+		} catch (IOException e) {
+			logger.warning("Error on data channel: " + e.getMessage());
+		} catch (InterruptedException e) {
+			logger.warning("Data channel interrupted");
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException e) { }
+		}
+	}
+
+	private void sendPart(SocketChannel channel, Resource resource, int part, long offset, long length) throws IOException {
+		if (!ResourceStorage.isValidName(resource.getName())) {
+			writeLength(channel, UNAVAILABLE);
+			return;
+		}
+
+		long size = sharedResources.contains(resource) ? storage.getSize(resource) : -1;
+		if (size < 0) {
+			sendIncomingPart(channel, storage.getIncoming(resource), part, offset, length);
+			return;
+		}
+
+		long available = ResourceStorage.partLength(size, resource.getParts(), part) - offset;
+		if (part < 0 || part >= resource.getParts() || offset < 0 || available < 0) {
+			writeLength(channel, UNAVAILABLE);
+			return;
+		}
+
+		long count = Math.min(length, available);
+		long position = ResourceStorage.partOffset(size, resource.getParts(), part) + offset;
+		writeLength(channel, count);
+
+		FileInputStream input = new FileInputStream(storage.getFile(resource));
+		try {
+			FileChannel file = input.getChannel();
+			while (count > 0) {
+				long sent = file.transferTo(position, count, channel);
+				position += sent;
+				count -= sent;
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Invia una parte già completata di una risorsa ancora in download,
+	 * leggendola dalla memoria mappata del file temporaneo.
+	 */
+	private void sendIncomingPart(SocketChannel channel, ResourceStorage.IncomingResource incoming, int part, long offset,
+			long length) throws IOException {
+		if (incoming == null || part < 0 || part >= incoming.getParts() || !incoming.isComplete(part) || offset < 0
+				|| offset > incoming.getPartLength(part)) {
+			writeLength(channel, UNAVAILABLE);
+			return;
+		}
+
+		writeLength(channel, Math.min(length, incoming.getPartLength(part) - offset));
+		incoming.transferTo(part, offset, length, channel);
+	}
+
+	/**
+	 * Invia sul canale <code>channel</code> la richiesta, da parte del client
+	 * <code>requester</code>, di <code>length</code> byte della parte
+	 * <code>part</code> della risorsa <code>resource</code> a partire dalla
+	 * posizione <code>offset</code> all'interno della parte.
+	 */
+	static void writeRequest(WritableByteChannel channel, String requester, Resource resource, int part, long offset,
+			long length) throws IOException {
+		byte[] client = requester.getBytes(UTF8);
+		byte[] name = resource.getName().getBytes(UTF8);
+		ByteBuffer request = ByteBuffer.allocate(client.length + name.length + 32);
+		request.putInt(client.length).put(client);
+		request.putInt(name.length).put(name).putInt(resource.getParts()).putInt(part).putLong(offset).putLong(length);
+		request.flip();
+		while (request.hasRemaining()) {
+			channel.write(request);
+		}
+	}
+
+	/**
+	 * Legge dal canale <code>channel</code> il numero di byte che seguono la
+	 * risposta, -1 se la parte richiesta non è disponibile.
+	 * @throws BusyException se il client non ha slot di upload liberi
+	 */
+	static long readLength(ReadableByteChannel channel) throws IOException, BusyException {
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		readFully(channel, buffer, false);
+		buffer.flip();
+		long length = buffer.getLong();
+		if (length == BUSY) {
+			throw new BusyException("Nessuno slot di upload libero");
+		}
+		return length;
+	}
+
+	private static String readString(ReadableByteChannel channel, int length) throws IOException {
+		if (length < 0 || length > MAX_NAME_LENGTH) {
+			throw new IOException("Richiesta non valida");
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		readFully(channel, buffer, false);
+		return new String(buffer.array(), UTF8);
+	}
+
+	private static void writeLength(WritableByteChannel channel, long length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		buffer.putLong(length);
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Riempie <code>buffer</code> leggendo da <code>channel</code>. Ritorna
+	 * <code>false</code> se il canale è chiuso prima di leggere il primo
+	 * byte e <code>eofAllowed</code> è <code>true</code>.
+	 */
+	private static boolean readFully(ReadableByteChannel channel, ByteBuffer buffer, boolean eofAllowed) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				if (buffer.position() == 0 && eofAllowed) {
+					return false;
+				}
+				throw new EOFException("Connessione chiusa");
+			}
+		}
+		return true;
+	}
+}
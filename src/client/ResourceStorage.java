@@ -0,0 +1,630 @@
+package client;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import share.Log;
+import share.Resource;
+
+/**
+ * <p>
+ * Archivio su disco delle risorse di un client. Ogni risorsa completa è
+ * memorizzata nella directory dell'archivio in un file il cui nome è
+ * composto dal nome della risorsa e dal numero di parti separati da un punto,
+ * ad esempio <code>A.4</code>, poiché risorse con lo stesso nome e un numero
+ * di parti diverso sono risorse diverse. Il file è diviso in parti della
+ * stessa dimensione, tranne l'ultima che può essere più corta. I nomi che
+ * contengono separatori di percorso o <code>..</code> non sono accettati.
+ * </p>
+ * <p>
+ * Una risorsa in download viene scritta in un file temporaneo, rinominato
+ * con il nome della risorsa solo quando tutte le parti sono state scritte.
+ * Accanto al file temporaneo è mantenuto un file di metadati con la
+ * dimensione della risorsa, l'impronta SHA-1 di ogni parte e la mappa delle
+ * parti già verificate, da cui è possibile riprendere il download dopo un
+ * arresto improvviso del client. Le parti già verificate di una risorsa in
+ * download possono essere lette e inviate ad altri client prima che il
+ * download sia completato.
+ * </p>
+ */
+public class ResourceStorage {
+	private static final String INCOMPLETE_SUFFIX = ".part";
+	private static final String META_SUFFIX = ".meta";
+	private static final int META_MAGIC = 0x50325031;
+	private static final int META_HEADER_LENGTH = 20;
+	private static final String DIGEST_ALGORITHM = "SHA-1";
+	private static final int DIGEST_LENGTH = 20;
+	private File directory;
+	private Log logger;
+	private Map<Resource, byte[][]> digests = new ConcurrentHashMap<Resource, byte[][]>();
+	private ConcurrentMap<Resource, IncomingResource> incomingResources = new ConcurrentHashMap<Resource, IncomingResource>();
+
+	public ResourceStorage(File directory) {
+		this.directory = directory;
+		this.logger = new Log(directory.getName());
+		directory.mkdirs();
+	}
+
+	/**
+	 * Ritorna il file della risorsa completa <code>resource</code>, oppure
+	 * <code>null</code> se il nome della risorsa non è valido.
+	 * @param resource
+	 * @return File
+	 * @see {@link #isValidName(String)}
+	 */
+	public File getFile(Resource resource) {
+		if (!isValidName(resource.getName()) || resource.getParts() < 1) {
+			return null;
+		}
+		return new File(directory, fileName(resource));
+	}
+
+	/**
+	 * Ritorna <code>true</code> se <code>name</code> può essere usato come
+	 * nome di un file dell'archivio, ovvero se non è vuoto e non contiene
+	 * separatori di percorso, <code>..</code> o caratteri di controllo.
+	 * @param name
+	 * @return boolean
+	 */
+	public static boolean isValidName(String name) {
+		if (name == null || name.isEmpty() || name.equals(".") || name.contains("..")) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c == '/' || c == '\\' || c == File.separatorChar || c < ' ') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Ritorna <code>true</code> se <code>partDigests</code> contiene
+	 * un'impronta SHA-1 per ciascuna delle <code>parts</code> parti, così da
+	 * poter essere salvato nel file dei metadati senza alterarne il formato.
+	 * @param partDigests
+	 * @param parts
+	 * @return boolean
+	 */
+	public static boolean isValidDigests(byte[][] partDigests, int parts) {
+		if (partDigests == null || partDigests.length != parts) {
+			return false;
+		}
+		for (byte[] digest : partDigests) {
+			if (digest == null || digest.length != DIGEST_LENGTH) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String fileName(Resource resource) {
+		return resource.getName() + "." + resource.getParts();
+	}
+
+	/**
+	 * Ritorna la dimensione in byte della risorsa completa
+	 * <code>resource</code>, oppure -1 se non è presente nell'archivio.
+	 * @param resource
+	 * @return long
+	 */
+	public long getSize(Resource resource) {
+		File file = getFile(resource);
+		return file != null && file.isFile() ? file.length() : -1;
+	}
+
+	/**
+	 * Legge al più <code>length</code> byte della parte <code>part</code>
+	 * della risorsa <code>resource</code>, a partire dalla posizione
+	 * <code>offset</code> all'interno della parte. Se la risorsa è ancora in
+	 * download la parte deve essere già stata completata.
+	 * @param resource
+	 * @param part
+	 * @param offset
+	 * @param length
+	 * @return byte[]
+	 * @throws IOException
+	 */
+	public byte[] read(Resource resource, int part, long offset, int length) throws IOException {
+		File complete = getFile(resource);
+		if (complete == null) {
+			throw new IOException("Nome della risorsa " + resource + " non valido");
+		}
+		if (!complete.isFile()) {
+			IncomingResource incoming = getIncoming(resource);
+			if (incoming == null || !incoming.isComplete(part)) {
+				throw new IOException("Parte " + part + " della risorsa " + resource + " non disponibile");
+			}
+			return incoming.read(part, offset, length);
+		}
+
+		RandomAccessFile file = new RandomAccessFile(complete, "r");
+		try {
+			long size = file.length();
+			long available = partLength(size, resource.getParts(), part) - offset;
+			if (offset < 0 || available < 0) {
+				throw new IOException("Posizione " + offset + " fuori dalla parte " + part);
+			}
+
+			byte[] chunk = new byte[(int) Math.min(length, available)];
+			file.seek(partOffset(size, resource.getParts(), part) + offset);
+			file.readFully(chunk);
+			return chunk;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Ritorna l'impronta SHA-1 di ogni parte della risorsa completa
+	 * <code>resource</code>, oppure <code>null</code> se la risorsa non è
+	 * presente nell'archivio. Le impronte sono calcolate alla prima richiesta e
+	 * poi conservate in memoria.
+	 * @param resource
+	 * @return byte[][]
+	 * @throws IOException
+	 */
+	public byte[][] getPartDigests(Resource resource) throws IOException {
+		byte[][] cached = digests.get(resource);
+		if (cached != null) {
+			return cached;
+		}
+
+		File file = getFile(resource);
+		if (file == null || !file.isFile()) {
+			return null;
+		}
+
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			long size = channel.size();
+			byte[][] result = new byte[resource.getParts()][];
+			for (int i = 0; i < result.length; i++) {
+				result[i] = digest(channel.map(MapMode.READ_ONLY, partOffset(size, resource.getParts(), i),
+						partLength(size, resource.getParts(), i)));
+			}
+			digests.put(resource, result);
+			return result;
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Ritorna le risorse di cui esiste un download interrotto, ovvero un file
+	 * dei metadati nella directory dell'archivio.
+	 * @return Vector
+	 */
+	public Vector<Resource> getIncompleteResources() {
+		Vector<Resource> resources = new Vector<Resource>();
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return resources;
+		}
+
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.endsWith(META_SUFFIX) || file.length() < META_HEADER_LENGTH) {
+				continue;
+			}
+
+			try {
+				DataInputStream input = new DataInputStream(new FileInputStream(file));
+				try {
+					int magic = input.readInt();
+					input.readLong();
+					int parts = input.readInt();
+					String base = name.substring(0, name.length() - META_SUFFIX.length());
+					String suffix = "." + parts;
+					if (magic == META_MAGIC && parts > 0 && base.endsWith(suffix) && base.length() > suffix.length()) {
+						resources.add(new Resource(base.substring(0, base.length() - suffix.length()), parts));
+					}
+				} finally {
+					input.close();
+				}
+			} catch (IOException e) {
+				logger.warning("Cannot read " + file);
+			}
+		}
+		return resources;
+	}
+
+	/**
+	 * Crea il file temporaneo in cui scrivere le parti della risorsa
+	 * <code>resource</code> di <code>size</code> byte e il file dei metadati
+	 * in cui sono registrate le impronte <code>partDigests</code>, che possono
+	 * essere <code>null</code> ma altrimenti devono essere valide secondo
+	 * {@link #isValidDigests(byte[][], int)}, e le parti già verificate. Se
+	 * esiste un
+	 * download interrotto della stessa risorsa, con la stessa dimensione e le
+	 * stesse impronte, le parti già completate vengono mantenute.
+	 * @param resource
+	 * @param size
+	 * @param partDigests
+	 * @return IncomingResource
+	 * @throws IOException
+	 */
+	public IncomingResource create(Resource resource, long size, byte[][] partDigests) throws IOException {
+		if (getFile(resource) == null) {
+			throw new IOException("Nome della risorsa " + resource + " non valido");
+		}
+		if (partDigests != null && !isValidDigests(partDigests, resource.getParts())) {
+			throw new IOException("Impronte della risorsa " + resource + " non valide");
+		}
+		IncomingResource incoming = new IncomingResource(resource, size, partDigests);
+		incomingResources.put(resource, incoming);
+		return incoming;
+	}
+
+	/**
+	 * Ritorna la risorsa in download <code>resource</code>, oppure
+	 * <code>null</code> se la risorsa non è in download.
+	 * @param resource
+	 * @return IncomingResource
+	 */
+	public IncomingResource getIncoming(Resource resource) {
+		return incomingResources.get(resource);
+	}
+
+	/**
+	 * Ritorna la posizione del primo byte della parte <code>part</code> di
+	 * una risorsa di <code>size</code> byte divisa in <code>parts</code>
+	 * parti.
+	 */
+	public static long partOffset(long size, int parts, int part) {
+		return Math.min(size, part * partSize(size, parts));
+	}
+
+	/**
+	 * Ritorna la lunghezza in byte della parte <code>part</code> di una
+	 * risorsa di <code>size</code> byte divisa in <code>parts</code> parti.
+	 */
+	public static long partLength(long size, int parts, int part) {
+		return Math.min(size, partOffset(size, parts, part) + partSize(size, parts)) - partOffset(size, parts, part);
+	}
+
+	private static long partSize(long size, int parts) {
+		return (size + parts - 1) / parts;
+	}
+
+	private static byte[] digest(ByteBuffer data) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+			digest.update(data);
+			return digest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(DIGEST_ALGORITHM + " non disponibile", e);
+		}
+	}
+
+	/**
+	 * Risorsa in download. Il file temporaneo viene preallocato e ogni parte
+	 * è mappata in memoria separatamente, così che le parti possano essere
+	 * scritte in qualsiasi ordine e da più thread contemporaneamente senza
+	 * alcun lock. Quando una parte è stata scritta e la sua impronta
+	 * verificata, viene segnata come completata nella mappa delle parti del
+	 * file dei metadati, anch'esso mappato in memoria.
+	 */
+	public class IncomingResource {
+		private Resource resource;
+		private long size;
+		private byte[][] partDigests;
+		private File file;
+		private File metaFile;
+		private RandomAccessFile randomAccessFile;
+		private RandomAccessFile metaRandomAccessFile;
+		private MappedByteBuffer[] regions;
+		private MappedByteBuffer meta;
+		private int bitmapOffset;
+
+		private IncomingResource(Resource resource, long size, byte[][] partDigests) throws IOException {
+			this.resource = resource;
+			this.size = size;
+			this.partDigests = partDigests;
+			this.file = new File(directory, fileName(resource) + INCOMPLETE_SUFFIX);
+			this.metaFile = new File(directory, fileName(resource) + META_SUFFIX);
+
+			if (partSize(size, resource.getParts()) > Integer.MAX_VALUE) {
+				throw new IOException("Parti della risorsa " + resource + " troppo grandi");
+			}
+
+			try {
+				this.randomAccessFile = new RandomAccessFile(file, "rw");
+				this.randomAccessFile.setLength(size);
+				FileChannel channel = randomAccessFile.getChannel();
+				this.regions = new MappedByteBuffer[resource.getParts()];
+				for (int i = 0; i < regions.length; i++) {
+					regions[i] = channel.map(MapMode.READ_WRITE, partOffset(size, resource.getParts(), i), getPartLength(i));
+				}
+
+				this.metaRandomAccessFile = new RandomAccessFile(metaFile, "rw");
+				if (!resume()) {
+					int digestLength = partDigests == null ? 0 : partDigests[0].length;
+					this.bitmapOffset = META_HEADER_LENGTH + resource.getParts() * digestLength;
+					this.metaRandomAccessFile.setLength(0);
+					this.meta = metaRandomAccessFile.getChannel().map(MapMode.READ_WRITE, 0, bitmapOffset + resource.getParts());
+					meta.putInt(META_MAGIC).putLong(size).putInt(resource.getParts()).putInt(digestLength);
+					for (int i = 0; partDigests != null && i < partDigests.length; i++) {
+						meta.put(partDigests[i]);
+					}
+					meta.force();
+				}
+			} catch (IOException e) {
+				abort();
+				throw e;
+			}
+		}
+
+		/**
+		 * Riprende la mappa delle parti completate dal file dei metadati
+		 * esistente, se è stato scritto per una risorsa della stessa
+		 * dimensione e con le stesse impronte. Se le impronte non sono note
+		 * vengono usate quelle del file dei metadati. Ritorna
+		 * <code>false</code> se il file dei metadati non esiste o non può
+		 * essere ripreso.
+		 */
+		private boolean resume() throws IOException {
+			long length = metaRandomAccessFile.length();
+			if (length < META_HEADER_LENGTH) {
+				return false;
+			}
+
+			MappedByteBuffer existing = metaRandomAccessFile.getChannel().map(MapMode.READ_WRITE, 0, length);
+			int digestLength = existing.getInt(16);
+			if (existing.getInt(0) != META_MAGIC || existing.getLong(4) != size || existing.getInt(12) != resource.getParts()
+					|| digestLength < 0 || length != META_HEADER_LENGTH + (long) resource.getParts() * (digestLength + 1)) {
+				return false;
+			}
+
+			byte[][] stored = null;
+			if (digestLength > 0) {
+				stored = new byte[resource.getParts()][digestLength];
+				existing.position(META_HEADER_LENGTH);
+				for (int i = 0; i < stored.length; i++) {
+					existing.get(stored[i]);
+				}
+			}
+
+			if (partDigests != null && (stored == null || !Arrays.deepEquals(partDigests, stored))) {
+				return false;
+			}
+
+			this.partDigests = stored;
+			this.bitmapOffset = META_HEADER_LENGTH + resource.getParts() * digestLength;
+			this.meta = existing;
+			return true;
+		}
+
+		/**
+		 * Ritorna la dimensione in byte della risorsa.
+		 * @return long
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * Ritorna il numero di parti della risorsa.
+		 * @return int
+		 */
+		public int getParts() {
+			return resource.getParts();
+		}
+
+		/**
+		 * Ritorna l'impronta SHA-1 di ogni parte, oppure <code>null</code> se
+		 * le impronte non sono note.
+		 * @return byte[][]
+		 */
+		public byte[][] getPartDigests() {
+			return partDigests;
+		}
+
+		/**
+		 * Ritorna la lunghezza in byte della parte <code>part</code>.
+		 * @param part
+		 * @return long
+		 */
+		public long getPartLength(int part) {
+			return partLength(size, resource.getParts(), part);
+		}
+
+		/**
+		 * Scrive <code>data</code> nella parte <code>part</code> a partire
+		 * dalla posizione <code>offset</code> all'interno della parte.
+		 * @param part
+		 * @param offset
+		 * @param data
+		 * @throws IOException
+		 */
+		public void write(int part, long offset, byte[] data) throws IOException {
+			region(part, offset, data.length).put(data);
+		}
+
+		/**
+		 * Scrive nella parte <code>part</code>, a partire dalla posizione
+		 * <code>offset</code> all'interno della parte, al più
+		 * <code>count</code> byte letti direttamente dal canale
+		 * <code>source</code>. Ritorna il numero di byte scritti.
+		 * @param part
+		 * @param offset
+		 * @param source
+		 * @param count
+		 * @return long
+		 * @throws IOException se il canale è stato chiuso
+		 */
+		public long receive(int part, long offset, ReadableByteChannel source, long count) throws IOException {
+			int received = source.read(region(part, offset, count));
+			if (received < 0) {
+				throw new EOFException("Connessione chiusa");
+			}
+			return received;
+		}
+
+		/**
+		 * Legge al più <code>length</code> byte della parte <code>part</code>
+		 * a partire dalla posizione <code>offset</code> all'interno della
+		 * parte.
+		 * @param part
+		 * @param offset
+		 * @param length
+		 * @return byte[]
+		 * @throws IOException
+		 */
+		public byte[] read(int part, long offset, int length) throws IOException {
+			ByteBuffer region = region(part, offset, length);
+			byte[] chunk = new byte[region.remaining()];
+			region.get(chunk);
+			return chunk;
+		}
+
+		/**
+		 * Scrive sul canale <code>target</code> al più <code>count</code> byte
+		 * della parte <code>part</code> a partire dalla posizione
+		 * <code>offset</code> all'interno della parte, direttamente dalla
+		 * memoria mappata del file. Ritorna il numero di byte scritti.
+		 * @param part
+		 * @param offset
+		 * @param count
+		 * @param target
+		 * @return long
+		 * @throws IOException
+		 */
+		public long transferTo(int part, long offset, long count, WritableByteChannel target) throws IOException {
+			ByteBuffer region = region(part, offset, count);
+			long sent = region.remaining();
+			while (region.hasRemaining()) {
+				target.write(region);
+			}
+			return sent;
+		}
+
+		/**
+		 * Verifica che l'impronta della parte <code>part</code> corrisponda a
+		 * quella registrata alla creazione. Ritorna sempre <code>true</code>
+		 * se le impronte non sono note.
+		 * @param part
+		 * @return boolean
+		 */
+		public boolean verify(int part) {
+			return verify(part, regions[part].duplicate());
+		}
+
+		/**
+		 * Verifica che l'impronta di <code>data</code>, dalla posizione
+		 * corrente al limite, corrisponda a quella registrata per la parte
+		 * <code>part</code>. Ritorna sempre <code>true</code> se le impronte
+		 * non sono note.
+		 * @param part
+		 * @param data
+		 * @return boolean
+		 */
+		public boolean verify(int part, ByteBuffer data) {
+			if (partDigests == null) {
+				return true;
+			}
+			return MessageDigest.isEqual(partDigests[part], digest(data));
+		}
+
+		/**
+		 * Salva su disco la parte <code>part</code> e la segna come completata
+		 * nel file dei metadati.
+		 * @param part
+		 */
+		public void markComplete(int part) {
+			regions[part].force();
+			meta.put(bitmapOffset + part, (byte) 1);
+			meta.force();
+		}
+
+		/**
+		 * Ritorna <code>true</code> se la parte <code>part</code> è segnata
+		 * come completata nel file dei metadati.
+		 * @param part
+		 * @return boolean
+		 */
+		public boolean isComplete(int part) {
+			return meta.get(bitmapOffset + part) != 0;
+		}
+
+		/**
+		 * Chiude il file temporaneo e lo rinomina con il nome della risorsa.
+		 * Il file dei metadati viene eliminato e le impronte delle parti
+		 * conservate per i client che scaricheranno la risorsa.
+		 * @throws IOException
+		 */
+		public void complete() throws IOException {
+			close();
+			File target = getFile(resource);
+			target.delete();
+			if (!file.renameTo(target)) {
+				throw new IOException("Impossibile rinominare " + file + " in " + target);
+			}
+			metaFile.delete();
+			if (partDigests != null) {
+				digests.put(resource, partDigests);
+			}
+		}
+
+		/**
+		 * Chiude il file temporaneo e il file dei metadati senza eliminarli,
+		 * così che il download possa essere ripreso in seguito dalle parti
+		 * già completate.
+		 */
+		public void suspend() {
+			close();
+		}
+
+		/**
+		 * Chiude ed elimina il file temporaneo e il file dei metadati.
+		 */
+		public void abort() {
+			close();
+			file.delete();
+			metaFile.delete();
+		}
+
+		private ByteBuffer region(int part, long offset, long count) throws IOException {
+			ByteBuffer region = regions[part].duplicate();
+			if (offset < 0 || offset > region.limit()) {
+				throw new IOException("Posizione " + offset + " fuori dalla parte " + part);
+			}
+			region.position((int) offset);
+			region.limit((int) Math.min(region.limit(), offset + count));
+			return region;
+		}
+
+		private void close() {
+			incomingResources.remove(resource, this);
+			try {
+				if (randomAccessFile != null) {
+					randomAccessFile.close();
+				}
+				if (metaRandomAccessFile != null) {
+					metaRandomAccessFile.close();
+				}
+			} catch (IOException e) {
+				logger.warning("Error while closing " + file);
+			}
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package client;
+
+/**
+ * Strategie con cui lo scheduler dei download sceglie la prossima parte da
+ * scaricare e il client da cui scaricarla.
+ */
+public enum SelectionStrategy {
+	/**
+	 * Le parti sono scaricate in ordine dal primo client libero.
+	 */
+	FIRST_IDLE,
+
+	/**
+	 * Le parti sono scaricate in ordine dal client libero con il minor
+	 * tempo atteso per parte.
+	 */
+	FASTEST_FIRST,
+
+	/**
+	 * Viene scaricata per prima la parte posseduta dal minor numero di
+	 * client, dal client libero con il minor tempo atteso per parte.
+	 */
+	RAREST_FIRST
+}
@@ -0,0 +1,79 @@
+package client;
+
+/**
+ * Statistiche sui download effettuati da un client remoto. La latenza per
+ * parte, il throughput e il tasso di fallimento sono stimati con una media
+ * mobile esponenziale (EWMA), così che le misure recenti pesino più di
+ * quelle passate. Le statistiche sono condivise tra tutti i download del
+ * client e sono usate per scegliere le sorgenti più veloci.
+ */
+public class SourceStats {
+	/**
+	 * Peso dell'ultima misura nella media mobile esponenziale.
+	 */
+	private static final double alpha = 0.3;
+
+	private double latency = -1;
+	private double throughput = -1;
+	private double failureRate = 0;
+	private int consecutiveFailures = 0;
+
+	/**
+	 * Registra il download di una parte completato in <code>millis</code>
+	 * millisecondi trasferendo <code>bytes</code> byte.
+	 * @param millis
+	 * @param bytes
+	 */
+	public synchronized void recordSuccess(long millis, long bytes) {
+		latency = latency < 0 ? millis : alpha * millis + (1 - alpha) * latency;
+		if (bytes > 0) {
+			double sample = (double) bytes / Math.max(1, millis);
+			throughput = throughput < 0 ? sample : alpha * sample + (1 - alpha) * throughput;
+		}
+		failureRate = (1 - alpha) * failureRate;
+		consecutiveFailures = 0;
+	}
+
+	/**
+	 * Registra il fallimento del download di una parte.
+	 */
+	public synchronized void recordFailure() {
+		failureRate = alpha + (1 - alpha) * failureRate;
+		consecutiveFailures++;
+	}
+
+	/**
+	 * Ritorna il tempo atteso in millisecondi per scaricare con successo una
+	 * parte di <code>partLength</code> byte. Il tempo di un download riuscito
+	 * è stimato dal throughput, oppure dalla latenza se il client non ha
+	 * ancora trasferito byte; ogni fallimento atteso costa quanto un download
+	 * riuscito. Un client senza download riusciti paga <code>penalty</code>
+	 * millisecondi per ogni fallimento atteso, così che un client mai usato
+	 * abbia punteggio 0 e sia provato per primo, ma un client che ha solo
+	 * fallito venga provato dopo gli altri.
+	 * @param partLength
+	 * @param penalty
+	 * @return double
+	 */
+	public synchronized double getScore(long partLength, long penalty) {
+		double expectedFailures = failureRate / Math.max(0.01, 1 - failureRate);
+		double time;
+		if (throughput > 0 && partLength > 0) {
+			time = partLength / throughput;
+		} else if (latency >= 0) {
+			time = latency;
+		} else {
+			return expectedFailures * penalty;
+		}
+		return time * (1 + expectedFailures);
+	}
+
+	/**
+	 * Ritorna il numero di fallimenti consecutivi dall'ultimo download
+	 * riuscito.
+	 * @return int
+	 */
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+}
@@ -0,0 +1,101 @@
+package client;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Slot di upload di un client. Ogni parte, o blocco di una parte, inviata a
+ * un altro client occupa uno slot; le richieste che non trovano uno slot
+ * libero attendono in una coda FIFO al più <code>queueTimeout</code>
+ * millisecondi, dopo i quali il richiedente viene avvisato che il client è
+ * occupato.
+ * </p>
+ * <p>
+ * Con la politica tit-for-tat i client da cui sono state scaricate delle
+ * parti possono usare tutti gli slot, mentre gli altri ne possono occupare
+ * al più <code>optimisticSlots</code> contemporaneamente (optimistic
+ * unchoke), così che un client nuovo possa comunque ricevere le prime parti
+ * e iniziare a sua volta a inviarne.
+ * </p>
+ */
+public class UploadSlots {
+	private Semaphore slots;
+	private Semaphore optimisticSlots;
+	private long queueTimeout;
+	private Set<String> reciprocatingPeers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * @param capacity numero di upload contemporanei
+	 * @param queueTimeout attesa massima in millisecondi per uno slot
+	 * @param optimisticSlots numero di slot utilizzabili dai client che non
+	 * hanno mai inviato parti, oppure un valore negativo per servire tutti i
+	 * client allo stesso modo
+	 */
+	public UploadSlots(int capacity, long queueTimeout, int optimisticSlots) {
+		this.slots = new Semaphore(capacity, true);
+		this.queueTimeout = queueTimeout;
+		if (optimisticSlots >= 0) {
+			this.optimisticSlots = new Semaphore(optimisticSlots, true);
+		}
+	}
+
+	/**
+	 * Attende uno slot di upload per il client <code>requester</code>.
+	 * Ritorna il permesso da rilasciare al termine dell'upload, oppure
+	 * <code>null</code> se nessuno slot si è liberato in tempo.
+	 * @param requester
+	 * @return Permit
+	 * @throws InterruptedException
+	 */
+	public Permit acquire(String requester) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + queueTimeout;
+		boolean optimistic = optimisticSlots != null && !reciprocatingPeers.contains(requester);
+		if (optimistic && !optimisticSlots.tryAcquire(queueTimeout, TimeUnit.MILLISECONDS)) {
+			return null;
+		}
+
+		long remaining = Math.max(0, deadline - System.currentTimeMillis());
+		if (!slots.tryAcquire(remaining, TimeUnit.MILLISECONDS)) {
+			if (optimistic) {
+				optimisticSlots.release();
+			}
+			return null;
+		}
+		return new Permit(optimistic);
+	}
+
+	/**
+	 * Registra che il client <code>peer</code> ha inviato una parte a questo
+	 * client, così che con la politica tit-for-tat possa usare tutti gli
+	 * slot di upload.
+	 * @param peer
+	 */
+	public void reciprocate(String peer) {
+		if (optimisticSlots != null) {
+			reciprocatingPeers.add(peer);
+		}
+	}
+
+	/**
+	 * Slot di upload occupato, da rilasciare una sola volta al termine
+	 * dell'upload.
+	 */
+	public class Permit {
+		private boolean optimistic;
+
+		private Permit(boolean optimistic) {
+			this.optimistic = optimistic;
+		}
+
+		public void release() {
+			slots.release();
+			if (optimistic) {
+				optimisticSlots.release();
+			}
+		}
+	}
+}
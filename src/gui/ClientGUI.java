@@ -7,6 +7,9 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
 
 import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
@@ -17,27 +20,43 @@ import javax.swing.JList;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JSplitPane;
-import javax.swing.JTextArea;
 import javax.swing.JTextField;
-import javax.swing.ListModel;
 import javax.swing.ScrollPaneConstants;
 
 import client.ClientImpl;
+import client.ClientListener;
+import share.Resource;
 
 /**
  * Classe che crea l'interfaccia grafica del client e i metodi
  * per interfacciarsi con essa. Una volta istanziato un oggetto
  * di tipo ClientGUI, si dovrebbe chiamare il suo metodo
  * {@link #createAndShowGUI(String)}.
+ * La GUI osserva lo stato del client come {@link ClientListener} e applica
+ * tutti gli aggiornamenti a blocchi nel thread di event-dispatching.
+ * @see {@link UpdateCoalescer}
  */
-public class ClientGUI extends JPanel {
+public class ClientGUI extends JPanel implements ClientListener {
 	private JTextField inputSearch;
 	private JButton buttonSearch;
 	private JButton buttonDisconnect;
 	private JList listFile;
 	private JList listDownload;
-	private JTextArea logArea;
+	private LogArea logArea;
 	private ClientImpl clientReference;
+	private DefaultListModel listModelFile = new DefaultListModel();
+	private DefaultListModel listModelDownload = new DefaultListModel();
+
+	/**
+	 * Prima riga della lista dei download per ciascuna risorsa ancora in
+	 * download. Usata solo dal thread di event-dispatching.
+	 */
+	private Map<Resource, Integer> downloadRows = new HashMap<Resource, Integer>();
+	private int activeDownloads = 0;
+	private UpdateCoalescer updates = new UpdateCoalescer();
+	private StringBuilder pendingLog = new StringBuilder();
+	private final Object logKey = new Object();
+	private final Object resourcesKey = new Object();
 	
 	public ClientGUI(ClientImpl clientReference) {
 		super(new BorderLayout());
@@ -65,8 +84,8 @@ public class ClientGUI extends JPanel {
 		add(northPanel, BorderLayout.NORTH);
 
 		// create lists
-		listFile = new JList(new DefaultListModel());
-		listDownload = new JList(new DefaultListModel());
+		listFile = new JList(listModelFile);
+		listDownload = new JList(listModelDownload);
 		JScrollPane listFilePane = new JScrollPane(listFile);
 		JScrollPane listDownloadPane = new JScrollPane(listDownload);
 		listFile.setBorder(BorderFactory.createTitledBorder("File completi"));
@@ -78,8 +97,7 @@ public class ClientGUI extends JPanel {
         listContainer.add(listDownloadPane);
 		
         // create log area
-        logArea = new JTextArea(1, 10);
-        logArea.setEditable(false);
+        logArea = new LogArea(1, 10);
         JScrollPane logAreaPane = new JScrollPane(logArea,
         		ScrollPaneConstants.VERTICAL_SCROLLBAR_AS_NEEDED,
         		ScrollPaneConstants.HORIZONTAL_SCROLLBAR_AS_NEEDED);
@@ -139,30 +157,112 @@ public class ClientGUI extends JPanel {
     }
     
     /**
-     * Ritorna il modello dei dati della lista dei download.
-     * @return ListModel
-     * @see {@link javax.swing.JList#getModel()}
+     * Accoda il messaggio al testo da aggiungere all'area di log al
+     * prossimo aggiornamento.
      */
-    public ListModel getModelListDownload() {
-		return listDownload.getModel();
-	}
-    
+    @Override
+    public void logged(String message) {
+    	synchronized (pendingLog) {
+    		pendingLog.append(message).append('\n');
+    	}
+    	updates.post(logKey, new Runnable() {
+    		public void run() {
+    			String text;
+    			synchronized (pendingLog) {
+    				text = pendingLog.toString();
+    				pendingLog.setLength(0);
+    			}
+    			logArea.appendLines(text);
+    		}
+    	});
+    }
+
+    @Override
+    public void resourcesChanged(final Vector<Resource> resources) {
+    	updates.post(resourcesKey, new Runnable() {
+    		public void run() {
+    			listModelFile.clear();
+    			for (Resource resource : resources) {
+    				listModelFile.addElement(resource);
+    			}
+    		}
+    	});
+    }
+
     /**
-     * Imposta a listModelFile il model della lista dei file completi.
-     * @param listModelFile
+     * Aggiunge alla lista dei download una riga per ogni parte della
+     * risorsa. Se non ci sono altri download in corso, la lista viene prima
+     * svuotata.
      */
-    public void setModelFile(DefaultListModel listModelFile) {
-    	this.listFile.setModel(listModelFile);
+    @Override
+    public void downloadStarted(final Resource resource, final int parts) {
+    	updates.post(null, new Runnable() {
+    		public void run() {
+    			if (activeDownloads == 0) {
+    				listModelDownload.clear();
+    				downloadRows.clear();
+    			}
+    			activeDownloads++;
+    			downloadRows.put(resource, listModelDownload.size());
+    			listModelDownload.setSize(listModelDownload.size() + parts);
+    		}
+    	});
     }
-    
+
     /**
-     * Aggiunge la stringa text come una nuova riga nell'area di log.
-     * @param text
+     * Aggiorna la riga della parte. Tra due aggiornamenti della GUI viene
+     * applicato solo l'ultimo stato di ciascuna parte.
      */
-    public void appendLog(String text) {
-    	synchronized (logArea) {
-	    	logArea.append(text + "\n");
-	    	logArea.setCaretPosition(logArea.getDocument().getLength());
+    @Override
+    public void partChanged(final Resource resource, final int part, String source, String state) {
+    	String text = resource.getName() + ":" + part;
+    	if (source != null) {
+    		text += " " + source;
+    	}
+    	final String row = text + (state != null ? " [" + state + "]" : " ");
+    	updates.post(new PartKey(resource, part), new Runnable() {
+    		public void run() {
+    			Integer first = downloadRows.get(resource);
+    			if (first != null) {
+    				listModelDownload.set(first + part, row);
+    			}
+    		}
+    	});
+    }
+
+    @Override
+    public void downloadFinished(Resource resource, boolean downloaded) {
+    	updates.post(null, new Runnable() {
+    		public void run() {
+    			activeDownloads--;
+    		}
+    	});
+    }
+
+    /**
+     * Chiave degli aggiornamenti della riga di una parte.
+     */
+    private static class PartKey {
+    	private Resource resource;
+    	private int part;
+
+    	private PartKey(Resource resource, int part) {
+    		this.resource = resource;
+    		this.part = part;
+    	}
+
+    	@Override
+    	public boolean equals(Object obj) {
+    		if (!(obj instanceof PartKey)) {
+    			return false;
+    		}
+    		PartKey other = (PartKey) obj;
+    		return part == other.part && resource.equals(other.resource);
+    	}
+
+    	@Override
+    	public int hashCode() {
+    		return resource.hashCode() * 31 + part;
     	}
     }
     
@@ -0,0 +1,43 @@
+package gui;
+
+import javax.swing.JTextArea;
+import javax.swing.text.BadLocationException;
+
+/**
+ * Area di log che conserva solo le ultime <code>maxLogLines</code> righe,
+ * così che la memoria occupata dal documento non cresca indefinitamente.
+ * Come ogni componente Swing deve essere usata solo dal thread di
+ * event-dispatching.
+ */
+public class LogArea extends JTextArea {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Numero massimo di righe conservate nell'area di log. Configurabile con
+	 * la proprietà di sistema <code>gui.maxLogLines</code>.
+	 */
+	private static final int maxLogLines = Integer.getInteger("gui.maxLogLines", 1000);
+
+	public LogArea(int rows, int columns) {
+		super(rows, columns);
+		setEditable(false);
+	}
+
+	/**
+	 * Aggiunge <code>text</code> in fondo all'area, scarta le righe più
+	 * vecchie oltre <code>maxLogLines</code> e sposta il cursore alla fine.
+	 * @param text una o più righe terminate da un a capo
+	 */
+	public void appendLines(String text) {
+		append(text);
+		int excess = getLineCount() - 1 - maxLogLines;
+		if (excess > 0) {
+			try {
+				replaceRange("", 0, getLineStartOffset(excess));
+			} catch (BadLocationException e) {
+				setText("");
+			}
+		}
+		setCaretPosition(getDocument().getLength());
+	}
+}
@@ -5,6 +5,7 @@ import java.awt.Dimension;
 import java.awt.GridLayout;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.util.List;
 
 import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
@@ -14,26 +15,35 @@ import javax.swing.JList;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JSplitPane;
-import javax.swing.JTextArea;
 import javax.swing.ScrollPaneConstants;
 
+import server.ServerListener;
+
 /**
  * Classe che crea l'interfaccia grafica del server e i metodi
  * per interfacciarsi con essa. Una volta istanziato un oggetto
  * di tipo ServerGUI, si dovrebbe chiamare il suo metodo
  * {@link #createAndShowGUI(String)}.
+ * La GUI osserva lo stato del server come {@link ServerListener} e applica
+ * tutti gli aggiornamenti a blocchi nel thread di event-dispatching.
+ * @see {@link UpdateCoalescer}
  */
-public class ServerGUI extends JPanel {
-	private JTextArea logArea;
+public class ServerGUI extends JPanel implements ServerListener {
+	private LogArea logArea;
     private JList listClient;
 	private JList listServer;
+	private DefaultListModel listModelClient = new DefaultListModel();
+	private DefaultListModel listModelServer = new DefaultListModel();
+	private UpdateCoalescer updates = new UpdateCoalescer();
+	private StringBuilder pendingLog = new StringBuilder();
+	private final Object logKey = new Object();
 
     public ServerGUI() {
         super(new BorderLayout());
         
         // create lists
-        listClient = new JList(new DefaultListModel());
-        listServer = new JList(new DefaultListModel());
+        listClient = new JList(listModelClient);
+        listServer = new JList(listModelServer);
         JScrollPane listClientPane = new JScrollPane(listClient);
         JScrollPane listServerPane = new JScrollPane(listServer);
         listClient.setBorder(BorderFactory.createTitledBorder("Client connessi"));
@@ -45,8 +55,7 @@ public class ServerGUI extends JPanel {
         listContainer.add(listServerPane);
 
         // create log area
-        logArea = new JTextArea(1, 10);
-        logArea.setEditable(false);
+        logArea = new LogArea(1, 10);
         JScrollPane logAreaPane = new JScrollPane(logArea,
         		ScrollPaneConstants.VERTICAL_SCROLLBAR_AS_NEEDED,
         		ScrollPaneConstants.HORIZONTAL_SCROLLBAR_AS_NEEDED);
@@ -93,29 +102,49 @@ public class ServerGUI extends JPanel {
     }
     
     /**
-     * Imposta a listModelServer il model della lista dei server.
-     * @param listModelServer
-     */
-    public void setModelServer(DefaultListModel listModelServer) {
-		listServer.setModel(listModelServer);
-	}
-    
-    /**
-     * Imposta a listModelClient il model della lista dei client.
-     * @param listModelClient
+     * Accoda il messaggio al testo da aggiungere all'area di log al
+     * prossimo aggiornamento.
      */
-    public void setModelClient(DefaultListModel listModelClient) {
-		listClient.setModel(listModelClient);
-	}
-    
+    @Override
+    public void logged(String message) {
+    	synchronized (pendingLog) {
+    		pendingLog.append(message).append('\n');
+    	}
+    	updates.post(logKey, new Runnable() {
+    		public void run() {
+    			String text;
+    			synchronized (pendingLog) {
+    				text = pendingLog.toString();
+    				pendingLog.setLength(0);
+    			}
+    			logArea.appendLines(text);
+    		}
+    	});
+    }
+
+    @Override
+    public void clientsChanged(List<String> clientNames) {
+    	replace(listModelClient, clientNames);
+    }
+
+    @Override
+    public void serversChanged(List<String> serverNames) {
+    	replace(listModelServer, serverNames);
+    }
+
     /**
-     * Aggiunge la stringa text come una nuova riga nell'area di log.
-     * @param text
+     * Sostituisce al prossimo aggiornamento il contenuto del model
+     * <code>model</code> con gli elementi di <code>names</code>. Tra due
+     * aggiornamenti della GUI viene applicata solo l'ultima lista.
      */
-    public void appendLog(String text) {
-    	synchronized (logArea) {
-    		logArea.append(text + "\n");
-        	logArea.setCaretPosition(logArea.getDocument().getLength());
-		}
+    private void replace(final DefaultListModel model, final List<String> names) {
+    	updates.post(model, new Runnable() {
+    		public void run() {
+    			model.clear();
+    			for (String name : names) {
+    				model.addElement(name);
+    			}
+    		}
+    	});
     }
 }
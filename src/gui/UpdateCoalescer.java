@@ -0,0 +1,82 @@
+package gui;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.Timer;
+
+/**
+ * <p>
+ * Raccoglie gli aggiornamenti dell'interfaccia grafica inviati da qualsiasi
+ * thread e li applica a blocchi nel thread di event-dispatching, al più una
+ * volta ogni <code>refreshInterval</code> millisecondi.
+ * </p>
+ * <p>
+ * Gli aggiornamenti con la stessa chiave si sostituiscono: di una riga
+ * modificata più volte tra due aggiornamenti viene applicato solo l'ultimo
+ * valore. Gli aggiornamenti sono applicati nell'ordine in cui è stato
+ * inviato il loro ultimo valore.
+ * </p>
+ */
+public class UpdateCoalescer {
+
+	/**
+	 * Intervallo minimo in millisecondi tra due aggiornamenti
+	 * dell'interfaccia grafica. Configurabile con la proprietà di sistema
+	 * <code>gui.refreshInterval</code>.
+	 */
+	private static final int refreshInterval = Integer.getInteger("gui.refreshInterval", 100);
+	private Map<Object, Runnable> pending = new LinkedHashMap<Object, Runnable>();
+	private boolean scheduled = false;
+	private Timer timer;
+
+	public UpdateCoalescer() {
+		this.timer = new Timer(refreshInterval, new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				flush();
+			}
+		});
+		this.timer.setRepeats(false);
+	}
+
+	/**
+	 * Accoda l'aggiornamento <code>update</code>, sostituendo quello
+	 * eventualmente in attesa con la stessa chiave <code>key</code>.
+	 * @param key chiave dell'aggiornamento, oppure <code>null</code> se
+	 * l'aggiornamento non deve sostituirne altri
+	 * @param update
+	 */
+	public void post(Object key, Runnable update) {
+		boolean start;
+		synchronized (this) {
+			Object slot = key != null ? key : new Object();
+			pending.remove(slot);
+			pending.put(slot, update);
+			start = !scheduled;
+			scheduled = true;
+		}
+		if (start) {
+			timer.start();
+		}
+	}
+
+	/**
+	 * Applica gli aggiornamenti in attesa. Chiamato dal thread di
+	 * event-dispatching.
+	 */
+	private void flush() {
+		List<Runnable> updates;
+		synchronized (this) {
+			updates = new ArrayList<Runnable>(pending.values());
+			pending.clear();
+			scheduled = false;
+		}
+		for (Runnable update : updates) {
+			update.run();
+		}
+	}
+}
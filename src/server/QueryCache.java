@@ -0,0 +1,75 @@
+package server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Cache dei risultati delle ricerche, di dimensione limitata. Quando la cache
+ * è piena viene scartato il risultato usato meno di recente; ogni risultato
+ * scade inoltre dopo <code>ttl</code> millisecondi, poiché la cache non
+ * riceve notifiche delle modifiche ai risultati.
+ * </p>
+ * <p>
+ * Tutti i metodi sono sincronizzati sul monitor della cache, poiché anche la
+ * lettura modifica l'ordine di utilizzo dei risultati.
+ * </p>
+ */
+public class QueryCache<K, V> {
+	private int capacity;
+	private long ttl;
+	private LinkedHashMap<K, CachedResult<V>> entries;
+
+	public QueryCache(int capacity, long ttl) {
+		this.capacity = capacity;
+		this.ttl = ttl;
+		this.entries = new LinkedHashMap<K, CachedResult<V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, CachedResult<V>> eldest) {
+				return size() > QueryCache.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * Ritorna il risultato associato a <code>key</code>, oppure
+	 * <code>null</code> se non è in cache o è scaduto.
+	 * @param key
+	 * @return V
+	 */
+	public synchronized V get(K key) {
+		CachedResult<V> entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.expires < System.currentTimeMillis()) {
+			entries.remove(key);
+			return null;
+		}
+		return entry.value;
+	}
+
+	/**
+	 * Inserisce in cache il risultato <code>value</code> associato a
+	 * <code>key</code>.
+	 * @param key
+	 * @param value
+	 */
+	public synchronized void put(K key, V value) {
+		if (capacity > 0 && ttl > 0) {
+			entries.put(key, new CachedResult<V>(value, System.currentTimeMillis() + ttl));
+		}
+	}
+
+	private static class CachedResult<V> {
+		private V value;
+		private long expires;
+
+		private CachedResult(V value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,343 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
+
+import client.Client;
+import share.Resource;
+
+/**
+ * <p>
+ * Indice delle risorse possedute dai client connessi a un server. Oltre alla
+ * lista delle risorse di ogni client mantiene un indice invertito che associa
+ * ad ogni risorsa l'insieme dei client che la possiedono, così che la ricerca
+ * dei client per una risorsa costi quanto il numero dei possessori e non
+ * quanto il numero totale di risorse registrate.
+ * </p>
+ * <p>
+ * Per ogni client è memorizzata anche la versione della sua lista di risorse,
+ * in modo che le modifiche incrementali inviate dal client possano essere
+ * applicate solo se non ne è andata persa nessuna.
+ * </p>
+ * <p>
+ * I client che stanno scaricando una risorsa possono registrare le parti già
+ * completate: sono tenuti in un indice separato che associa a ogni risorsa
+ * le parti possedute da ciascun client, e vengono restituiti insieme ai
+ * possessori della risorsa completa.
+ * </p>
+ * <p>
+ * I nomi delle risorse possedute da almeno un client sono mantenuti anche in
+ * una mappa ordinata, così che la ricerca per prefisso o con caratteri jolly
+ * visiti solo i nomi che iniziano con la parte letterale del pattern.
+ * </p>
+ * <p>
+ * Le letture non acquisiscono alcun lock; le scritture sono serializzate sul
+ * monitor dell'indice per mantenere coerenti le due mappe.
+ * </p>
+ */
+public class ResourceIndex {
+	private Map<Client, Set<Resource>> clientsResources = new ConcurrentHashMap<Client, Set<Resource>>();
+	private Map<Client, Long> versions = new ConcurrentHashMap<Client, Long>();
+	private Map<Resource, Set<Client>> holders = new ConcurrentHashMap<Resource, Set<Client>>();
+	private Map<Resource, Map<Client, BitSet>> partialHolders = new ConcurrentHashMap<Resource, Map<Client, BitSet>>();
+	private ConcurrentNavigableMap<String, Set<Resource>> names = new ConcurrentSkipListMap<String, Set<Resource>>();
+
+	/**
+	 * Sostituisce la lista delle risorse possedute dal client "client" con
+	 * <code>resources</code>, che corrisponde alla versione
+	 * <code>version</code>, e aggiorna l'indice invertito.
+	 * @param client
+	 * @param resources
+	 * @param version
+	 */
+	public synchronized void put(Client client, Vector<Resource> resources, long version) {
+		remove(client);
+
+		Set<Resource> keys = newSet();
+		clientsResources.put(client, keys);
+		versions.put(client, version);
+		add(client, keys, resources);
+	}
+
+	/**
+	 * Applica alla lista delle risorse del client "client" le risorse
+	 * aggiunte e rimosse nella versione <code>version</code>. Ritorna
+	 * <code>false</code>, senza modificare l'indice, se il client non è
+	 * registrato o se <code>version</code> non è la versione successiva a
+	 * quella registrata.
+	 * @param client
+	 * @param version
+	 * @param added
+	 * @param removed
+	 * @return boolean
+	 */
+	public synchronized boolean apply(Client client, long version, Vector<Resource> added, Vector<Resource> removed) {
+		Set<Resource> keys = clientsResources.get(client);
+		Long current = versions.get(client);
+		if (keys == null || current == null || version != current + 1) {
+			return false;
+		}
+
+		versions.put(client, version);
+		for (Resource resource : removed) {
+			if (keys.remove(resource)) {
+				unindex(client, resource);
+			}
+		}
+		add(client, keys, added);
+		return true;
+	}
+
+	/**
+	 * Registra le parti <code>parts</code> della risorsa
+	 * <code>resource</code> possedute dal client "client", che non possiede
+	 * ancora la risorsa completa. Se <code>parts</code> è vuoto il client
+	 * viene rimosso dai possessori parziali della risorsa. Ritorna
+	 * <code>false</code>, senza modificare l'indice, se il client non è
+	 * registrato.
+	 * @param client
+	 * @param resource
+	 * @param parts
+	 * @return boolean
+	 */
+	public synchronized boolean updateParts(Client client, Resource resource, BitSet parts) {
+		Set<Resource> keys = clientsResources.get(client);
+		if (keys == null) {
+			return false;
+		}
+
+		if (parts == null || parts.isEmpty() || keys.contains(resource)) {
+			unindexParts(client, resource);
+			return true;
+		}
+
+		Map<Client, BitSet> peers = partialHolders.get(resource);
+		if (peers == null) {
+			peers = new ConcurrentHashMap<Client, BitSet>();
+			partialHolders.put(resource, peers);
+			indexName(resource);
+		}
+		peers.put(client, (BitSet) parts.clone());
+		return true;
+	}
+
+	/**
+	 * Rimuove il client "client" e tutte le sue risorse dall'indice.
+	 * @param client
+	 */
+	public synchronized void remove(Client client) {
+		for (Resource resource : partialHolders.keySet()) {
+			unindexParts(client, resource);
+		}
+		versions.remove(client);
+		Set<Resource> previous = clientsResources.remove(client);
+		if (previous != null) {
+			for (Resource resource : previous) {
+				unindex(client, resource);
+			}
+		}
+	}
+
+	/**
+	 * Ritorna la lista dei client che possiedono la risorsa
+	 * <code>resource</code>, eventualmente vuota. In coda alla lista sono
+	 * aggiunti i client che ne possiedono solo alcune parti, a partire da
+	 * quelli che ne possiedono di più.
+	 * @param resource
+	 * @return Vector
+	 */
+	public Vector<Client> getHolders(Resource resource) {
+		Vector<Client> result = new Vector<Client>();
+		Set<Client> set = holders.get(resource);
+		if (set != null) {
+			result.addAll(set);
+		}
+
+		Map<Client, BitSet> peers = partialHolders.get(resource);
+		if (peers != null) {
+			List<Map.Entry<Client, BitSet>> partial = new ArrayList<Map.Entry<Client, BitSet>>(peers.entrySet());
+			Collections.sort(partial, new Comparator<Map.Entry<Client, BitSet>>() {
+				public int compare(Map.Entry<Client, BitSet> a, Map.Entry<Client, BitSet> b) {
+					return b.getValue().cardinality() - a.getValue().cardinality();
+				}
+			});
+			for (Map.Entry<Client, BitSet> entry : partial) {
+				if (!result.contains(entry.getKey())) {
+					result.add(entry.getKey());
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Ritorna in ordine al più <code>limit</code> risorse il cui nome
+	 * corrisponde a <code>pattern</code> e che seguono la risorsa
+	 * <code>after</code>, che può essere <code>null</code> per ottenere la
+	 * prima pagina di risultati. Nel pattern il carattere '*' corrisponde a
+	 * una sequenza qualsiasi di caratteri e il carattere '?' a un singolo
+	 * carattere.
+	 * @param pattern
+	 * @param after
+	 * @param limit
+	 * @return Vector
+	 */
+	public Vector<Resource> find(String pattern, Resource after, int limit) {
+		String prefix = literalPrefix(pattern);
+		Pattern regex = toRegex(pattern);
+		String from = after != null && after.getName().compareTo(prefix) > 0 ? after.getName() : prefix;
+
+		Vector<Resource> result = new Vector<Resource>();
+		for (Map.Entry<String, Set<Resource>> entry : names.tailMap(from, true).entrySet()) {
+			if (!entry.getKey().startsWith(prefix)) {
+				break;
+			}
+			if (!regex.matcher(entry.getKey()).matches()) {
+				continue;
+			}
+
+			List<Resource> resources = new ArrayList<Resource>(entry.getValue());
+			Collections.sort(resources);
+			for (Resource resource : resources) {
+				if (after != null && resource.compareTo(after) <= 0) {
+					continue;
+				}
+				if (result.size() >= limit) {
+					return result;
+				}
+				result.add(resource);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Ritorna le risorse possedute, anche solo in parte, dal client
+	 * "client", eventualmente vuote.
+	 * @param client
+	 * @return Set
+	 */
+	public Set<Resource> getResources(Client client) {
+		Set<Resource> resources = new HashSet<Resource>();
+		Set<Resource> keys = clientsResources.get(client);
+		if (keys != null) {
+			resources.addAll(keys);
+		}
+
+		for (Map.Entry<Resource, Map<Client, BitSet>> entry : partialHolders.entrySet()) {
+			if (entry.getValue().containsKey(client)) {
+				resources.add(entry.getKey());
+			}
+		}
+		return resources;
+	}
+
+	private void add(Client client, Set<Resource> keys, Vector<Resource> resources) {
+		for (Resource resource : resources) {
+			unindexParts(client, resource);
+			if (keys.add(resource)) {
+				Set<Client> set = holders.get(resource);
+				if (set == null) {
+					set = newSet();
+					holders.put(resource, set);
+					indexName(resource);
+				}
+				set.add(client);
+			}
+		}
+	}
+
+	private void unindex(Client client, Resource resource) {
+		Set<Client> set = holders.get(resource);
+		if (set != null) {
+			set.remove(client);
+			if (set.isEmpty()) {
+				holders.remove(resource);
+				unindexName(resource);
+			}
+		}
+	}
+
+	private void unindexParts(Client client, Resource resource) {
+		Map<Client, BitSet> peers = partialHolders.get(resource);
+		if (peers != null) {
+			peers.remove(client);
+			if (peers.isEmpty()) {
+				partialHolders.remove(resource);
+				unindexName(resource);
+			}
+		}
+	}
+
+	private void indexName(Resource resource) {
+		Set<Resource> set = names.get(resource.getName());
+		if (set == null) {
+			set = newSet();
+			names.put(resource.getName(), set);
+		}
+		set.add(resource);
+	}
+
+	private void unindexName(Resource resource) {
+		if (holders.containsKey(resource) || partialHolders.containsKey(resource)) {
+			return;
+		}
+
+		Set<Resource> set = names.get(resource.getName());
+		if (set != null) {
+			set.remove(resource);
+			if (set.isEmpty()) {
+				names.remove(resource.getName());
+			}
+		}
+	}
+
+	/**
+	 * Ritorna la parte del pattern che precede il primo carattere jolly.
+	 */
+	private static String literalPrefix(String pattern) {
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c == '*' || c == '?') {
+				return pattern.substring(0, i);
+			}
+		}
+		return pattern;
+	}
+
+	private static Pattern toRegex(String pattern) {
+		StringBuilder regex = new StringBuilder();
+		StringBuilder literal = new StringBuilder();
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c == '*' || c == '?') {
+				if (literal.length() > 0) {
+					regex.append(Pattern.quote(literal.toString()));
+					literal.setLength(0);
+				}
+				regex.append(c == '*' ? ".*" : ".");
+			} else {
+				literal.append(c);
+			}
+		}
+		if (literal.length() > 0) {
+			regex.append(Pattern.quote(literal.toString()));
+		}
+		return Pattern.compile(regex.toString(), Pattern.DOTALL);
+	}
+
+	private static <T> Set<T> newSet() {
+		return Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+	}
+}
@@ -2,15 +2,25 @@ package server;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.BitSet;
+import java.util.Map;
 import java.util.Vector;
 
 import client.Client;
+import share.Resource;
 
 public interface Server extends Remote {
 	public void closeClient(Client client) throws RemoteException;
-	public Vector<Client> getClientListForResource(String[] query) throws RemoteException;
-	public Vector<Client> getLocalClientListForResource(String[] query) throws RemoteException;
+	public Vector<Client> getClientListForResource(Resource query) throws RemoteException;
+	public Map<Resource, Vector<Client>> getClientListForResources(Vector<Resource> queries) throws RemoteException;
+	public Vector<Client> getLocalClientListForResource(Resource query) throws RemoteException;
+	public Map<Resource, Vector<Client>> getLocalClientListForResources(Vector<Resource> queries) throws RemoteException;
+	public Vector<Resource> findResources(String pattern, Resource after, int limit) throws RemoteException;
+	public Vector<Resource> findLocalResources(String pattern, Resource after, int limit) throws RemoteException;
 	public String getServerName() throws RemoteException;
-	public void newClient(Client client) throws RemoteException;
-	public void updateResources(Client client) throws RemoteException;
+	public void newClient(Client client, Vector<Resource> resources, long version) throws RemoteException;
+	public boolean renewLease(Client client) throws RemoteException;
+	public boolean updateParts(Client client, Resource resource, BitSet parts) throws RemoteException;
+	public boolean updateResources(Client client, long version, Vector<Resource> added, Vector<Resource> removed)
+			throws RemoteException;
 }
@@ -7,133 +7,489 @@ import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.Arrays;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-
-import javax.swing.DefaultListModel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import client.Client;
+import share.DaemonThreadFactory;
+import share.Log;
+import share.Resource;
 
 public class ServerImpl extends UnicastRemoteObject implements Server {
 	private static final String HOST = "localhost";
-	private ServerGUI serverGUI;
+
+	/**
+	 * Durata in millisecondi del lease di un client. Un client che non
+	 * rinnova il proprio lease entro tale intervallo viene considerato
+	 * disconnesso. Configurabile con la proprietà di sistema
+	 * <code>server.leaseTtl</code>.
+	 */
+	private static final long leaseTtl = Long.getLong("server.leaseTtl", 6000);
+
+	/**
+	 * Tempo massimo in millisecondi di attesa delle risposte dei server
+	 * remoti a una ricerca federata. Configurabile con la proprietà di
+	 * sistema <code>server.remoteQueryTimeout</code>.
+	 */
+	private static final long remoteQueryTimeout = Long.getLong("server.remoteQueryTimeout", 2000);
+
+	/**
+	 * Intervallo massimo in millisecondi per cui un server remoto che non
+	 * risponde in tempo viene escluso dalle ricerche federate. L'intervallo
+	 * raddoppia a ogni timeout consecutivo a partire da
+	 * <code>remoteQueryTimeout</code>. Configurabile con la proprietà di
+	 * sistema <code>server.remoteBackoffMax</code>.
+	 */
+	private static final long remoteBackoffMax = Long.getLong("server.remoteBackoffMax", 60000);
+
+	/**
+	 * Numero massimo di risposte dei server remoti conservate in cache.
+	 * Configurabile con la proprietà di sistema
+	 * <code>server.queryCacheSize</code>.
+	 */
+	private static final int queryCacheSize = Integer.getInteger("server.queryCacheSize", 1024);
+
+	/**
+	 * Durata in millisecondi delle risposte dei server remoti in cache, che
+	 * non possono essere invalidate. Configurabile con la proprietà di
+	 * sistema <code>server.remoteCacheTtl</code>.
+	 */
+	private static final long remoteCacheTtl = Long.getLong("server.remoteCacheTtl", 1000);
+
+	/**
+	 * Numero massimo di risorse ritornate da una ricerca per nome.
+	 * Configurabile con la proprietà di sistema
+	 * <code>server.maxSearchResults</code>.
+	 */
+	private static final int maxSearchResults = Integer.getInteger("server.maxSearchResults", 100);
+
+	/**
+	 * Se <code>true</code> il server non crea l'interfaccia grafica.
+	 * Configurabile con la proprietà di sistema <code>server.headless</code>;
+	 * è attivo anche quando la JVM è avviata con
+	 * <code>java.awt.headless</code>.
+	 */
+	private static final boolean headless = Boolean.getBoolean("server.headless") || Boolean.getBoolean("java.awt.headless");
+
+	/**
+	 * Osservatori dello stato del server, tra cui l'eventuale interfaccia
+	 * grafica.
+	 */
+	private List<ServerListener> listeners = new CopyOnWriteArrayList<ServerListener>();
+	private Log logger;
 	private String serverName;
-	private List<Server> remoteServers = new CopyOnWriteArrayList<Server>();
+	private ConcurrentMap<String, RemoteServer> remoteServers = new ConcurrentHashMap<String, RemoteServer>();
 	private Vector<Client> remoteClients = new Vector<Client>();
-	private Map<Client, Vector<String[]>> clientsResources = Collections.synchronizedMap(new HashMap<Client, Vector<String[]>>());
+	private ResourceIndex resourceIndex = new ResourceIndex();
+	private QueryCache<Resource, Vector<Client>> remoteQueryCache = new QueryCache<Resource, Vector<Client>>(queryCacheSize, remoteCacheTtl);
+	private ConcurrentMap<Client, Long> leases = new ConcurrentHashMap<Client, Long>();
+
+	/**
+	 * Lock che rende atomiche la registrazione e la rimozione di un client,
+	 * così che il lease, l'indice delle risorse e la lista dei client
+	 * restino coerenti tra loro.
+	 */
+	private final Object registrations = new Object();
+
+	/**
+	 * Nomi dei client connessi, richiesti una sola volta a ciascun client.
+	 */
+	private Map<Client, String> clientNames = new ConcurrentHashMap<Client, String>();
+
+	/**
+	 * Pool delle chiamate ai server remoti. Non ha un limite di thread perché
+	 * ogni server remoto ha al più una chiamata in corso, per cui un server
+	 * bloccato occupa un solo thread e non ritarda le richieste agli altri.
+	 */
+	private ExecutorService remoteQueryExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("remote-query"));
 	private ServerDaemon serverDaemon;
+	private LeaseReaper leaseReaper;
 
 	public ServerImpl(final String serverName) throws RemoteException, MalformedURLException {
-		this.serverGUI = new ServerGUI();
 		this.serverName = serverName;
+		this.logger = new Log(serverName);
 		this.serverDaemon = new ServerDaemon();
-
-		javax.swing.SwingUtilities.invokeLater(new Runnable() {
-			public void run() {
-				serverGUI.createAndShowGUI(serverName);
-			}
-		});
+		this.leaseReaper = new LeaseReaper();
+
+		if (!headless) {
+			final ServerGUI serverGUI = new ServerGUI();
+			addServerListener(serverGUI);
+			javax.swing.SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					serverGUI.createAndShowGUI(serverName);
+				}
+			});
+		}
 
 		String rmiObjName = "rmi://" + HOST + "/Server/" + serverName;
 		Naming.rebind(rmiObjName,this);
 
 		serverDaemon.start();
+		leaseReaper.start();
 	}
 
 	@Override
 	public void closeClient(Client client) throws RemoteException {
-		remoteClients.remove(client);
-		clientsResources.remove(client);
+		synchronized (registrations) {
+			leases.remove(client);
+			remoteClients.remove(client);
+			clientNames.remove(client);
+			resourceIndex.remove(client);
+		}
 		updateClientList();
 	}
 
+	/**
+	 * Ritorna la lista dei client, connessi a questo server o ai server
+	 * remoti, che possiedono la risorsa <code>query</code>, oppure
+	 * <code>null</code> se non ce ne sono.
+	 * @param query
+	 */
 	@Override
-	public Vector<Client> getClientListForResource(String[] query) throws RemoteException {
-		Vector<Client> clientList = new Vector<Client>();
-		Vector<Client> localClientList = getLocalClientListForResource(query);
-		Vector<Client> remoteClientList = getRemoteClientListForResource(query);
+	public Vector<Client> getClientListForResource(Resource query) throws RemoteException {
+		Vector<Resource> queries = new Vector<Resource>();
+		queries.add(query);
+		return getClientListForResources(queries).get(query);
+	}
 
-		if (localClientList != null)
-			clientList.addAll(localClientList);
+	/**
+	 * Ritorna per ciascuna risorsa di <code>queries</code> la lista dei
+	 * client, connessi a questo server o ai server remoti, che la
+	 * possiedono. Le risorse che nessun client possiede non compaiono nella
+	 * mappa. Ogni server remoto viene interrogato una sola volta per tutte le
+	 * risorse.
+	 * @param queries
+	 */
+	@Override
+	public Map<Resource, Vector<Client>> getClientListForResources(Vector<Resource> queries) throws RemoteException {
+		Map<Resource, Vector<Client>> clientLists = getLocalClientListForResources(queries);
+		merge(clientLists, getRemoteClientListForResources(queries));
+		return clientLists;
+	}
 
-		if (remoteClientList != null)
-			clientList.addAll(remoteClientList);
+	/**
+	 * Ritorna la lista dei client connessi a questo server che possiedono la
+	 * risorsa <code>query</code>, oppure <code>null</code> se non ce ne sono.
+	 * La lista viene letta dall'indice delle risorse senza acquisire lock.
+	 * @param query
+	 */
+	@Override
+	public Vector<Client> getLocalClientListForResource(Resource query) throws RemoteException {
+		Vector<Client> clientList = resourceIndex.getHolders(query);
+		return clientList.isEmpty() ? null : clientList;
+	}
 
-		if (!clientList.isEmpty()) {
-			// remove duplicates
-			HashSet<Client> hs = new HashSet<Client>();
-			hs.addAll(clientList);
-			clientList.clear();
-			clientList.addAll(hs);
-			
-			return clientList;
+	/**
+	 * Ritorna per ciascuna risorsa di <code>queries</code> la lista dei
+	 * client connessi a questo server che la possiedono. Le risorse che
+	 * nessun client possiede non compaiono nella mappa.
+	 * @param queries
+	 */
+	@Override
+	public Map<Resource, Vector<Client>> getLocalClientListForResources(Vector<Resource> queries) throws RemoteException {
+		Map<Resource, Vector<Client>> clientLists = new HashMap<Resource, Vector<Client>>();
+		for (Resource query : queries) {
+			Vector<Client> clientList = getLocalClientListForResource(query);
+			if (clientList != null) {
+				clientLists.put(query, clientList);
+			}
+		}
+		return clientLists;
+	}
+
+	/**
+	 * Interroga in parallelo tutti i server remoti, ciascuno con una sola
+	 * chiamata per tutte le risorse di <code>queries</code>, e ritorna per
+	 * ogni risorsa l'unione dei client che la possiedono. I server che non
+	 * rispondono entro <code>remoteQueryTimeout</code> millisecondi vengono
+	 * ignorati e la mappa ritornata contiene solo i risultati parziali dei
+	 * server che hanno risposto in tempo. Le risposte vengono conservate in
+	 * cache per <code>remoteCacheTtl</code> millisecondi, solo se tutti i
+	 * server remoti hanno risposto, e solo le risorse non in cache vengono
+	 * richieste ai server remoti.
+	 * @param queries
+	 * @return Map
+	 */
+	private Map<Resource, Vector<Client>> getRemoteClientListForResources(Vector<Resource> queries) {
+		Map<Resource, Vector<Client>> clientLists = new HashMap<Resource, Vector<Client>>();
+		if (remoteServers.isEmpty()) {
+			return clientLists;
+		}
+
+		final Vector<Resource> missing = new Vector<Resource>();
+		for (Resource query : queries) {
+			Vector<Client> cached = remoteQueryCache.get(query);
+			if (cached == null) {
+				missing.add(query);
+			} else if (!cached.isEmpty()) {
+				clientLists.put(query, new Vector<Client>(cached));
+			}
+		}
+		if (missing.isEmpty()) {
+			return clientLists;
 		}
 
-		return null;
+		List<Map<Resource, Vector<Client>>> received = new ArrayList<Map<Resource, Vector<Client>>>();
+		boolean complete = queryRemoteServers(new RemoteQuery<Map<Resource, Vector<Client>>>() {
+			public Map<Resource, Vector<Client>> ask(Server server) throws RemoteException {
+				return server.getLocalClientListForResources(missing);
+			}
+		}, received);
+		Map<Resource, Vector<Client>> answers = new HashMap<Resource, Vector<Client>>();
+		for (Map<Resource, Vector<Client>> answer : received) {
+			merge(answers, answer);
+		}
+
+		for (Resource query : missing) {
+			Vector<Client> clientList = answers.get(query);
+			if (complete) {
+				// partial answers would hide the holders of the missing servers
+				remoteQueryCache.put(query, clientList == null ? new Vector<Client>() : new Vector<Client>(clientList));
+			}
+			if (clientList != null) {
+				clientLists.put(query, clientList);
+			}
+		}
+		return clientLists;
 	}
 
+	/**
+	 * Ritorna in ordine al più <code>limit</code> risorse, possedute dai
+	 * client di questo server o dei server remoti, il cui nome corrisponde a
+	 * <code>pattern</code> e che seguono la risorsa <code>after</code>. Per
+	 * ottenere la pagina successiva basta passare come <code>after</code>
+	 * l'ultima risorsa ricevuta. Il numero di risultati è comunque limitato a
+	 * <code>maxSearchResults</code>.
+	 * @param pattern
+	 * @param after
+	 * @param limit
+	 * @see {@link ResourceIndex#find(String, Resource, int)}
+	 */
 	@Override
-	public Vector<Client> getLocalClientListForResource(String[] query) throws RemoteException {
-		Vector<Client> clientList = new Vector<Client>();
-		for (Map.Entry<Client, Vector<String[]>> entry : clientsResources.entrySet()) {
-
-			try {
-				entry.getKey().ping();
-				boolean found = false;
-				for (Iterator<?> iterator = entry.getValue().iterator(); iterator.hasNext() && !found;) {
-					if (Arrays.equals( (String[]) iterator.next(), query)) {
-						clientList.add(entry.getKey());
-						found = true;
-					}
+	public Vector<Resource> findResources(final String pattern, final Resource after, int limit) throws RemoteException {
+		final int bounded = limit > 0 ? Math.min(limit, maxSearchResults) : maxSearchResults;
+		TreeSet<Resource> found = new TreeSet<Resource>(findLocalResources(pattern, after, bounded));
+		if (!remoteServers.isEmpty()) {
+			List<Vector<Resource>> answers = new ArrayList<Vector<Resource>>();
+			queryRemoteServers(new RemoteQuery<Vector<Resource>>() {
+				public Vector<Resource> ask(Server server) throws RemoteException {
+					return server.findLocalResources(pattern, after, bounded);
 				}
-
-			} catch (Exception e) {
-				System.out.println("One client does not respond");
-				remoteClients.remove(entry.getKey());
-				updateClientList();
-				clientsResources.remove(entry.getKey());
+			}, answers);
+			for (Vector<Resource> answer : answers) {
+				found.addAll(answer);
 			}
 		}
 
-		if (!clientList.isEmpty()) {
-			return clientList;
+		Vector<Resource> result = new Vector<Resource>(bounded);
+		for (Resource resource : found) {
+			if (result.size() >= bounded) {
+				break;
+			}
+			result.add(resource);
 		}
+		return result;
+	}
 
-		return null;
+	/**
+	 * Ritorna in ordine al più <code>limit</code> risorse, possedute dai
+	 * client di questo server, il cui nome corrisponde a
+	 * <code>pattern</code> e che seguono la risorsa <code>after</code>.
+	 * @param pattern
+	 * @param after
+	 * @param limit
+	 */
+	@Override
+	public Vector<Resource> findLocalResources(String pattern, Resource after, int limit) throws RemoteException {
+		return resourceIndex.find(pattern, after, limit > 0 ? Math.min(limit, maxSearchResults) : maxSearchResults);
 	}
 
-	private Vector<Client> getRemoteClientListForResource(String[] query) {
-		if (remoteServers.isEmpty()) {
-			return null;
+	/**
+	 * Esegue in parallelo la richiesta <code>query</code> su tutti i server
+	 * remoti e aggiunge ad <code>answers</code> le risposte ricevute entro
+	 * <code>remoteQueryTimeout</code> millisecondi. I server che falliscono
+	 * vengono rimossi dalla tabella dei server remoti, mentre quelli che non
+	 * rispondono in tempo vengono esclusi per un intervallo crescente. Un
+	 * server con una chiamata ancora in corso non viene interrogato di nuovo.
+	 * Ritorna <code>true</code> solo se tutti i server remoti hanno risposto,
+	 * cioè se le risposte sono complete.
+	 * @param query
+	 * @param answers
+	 * @return boolean
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> boolean queryRemoteServers(final RemoteQuery<T> query, List<T> answers) {
+		boolean complete = true;
+		long now = System.currentTimeMillis();
+		List<Map.Entry<String, RemoteServer>> servers = new ArrayList<Map.Entry<String, RemoteServer>>();
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (Map.Entry<String, RemoteServer> entry : remoteServers.entrySet()) {
+			final RemoteServer remote = entry.getValue();
+			if (!remote.isAvailable(now)) {
+				complete = false;
+				continue;
+			}
+
+			servers.add(entry);
+			tasks.add(new Callable<Object>() {
+				public Object call() throws RemoteException {
+					// The previous call may still be blocked on a hung peer
+					if (!remote.acquire()) {
+						return SKIPPED;
+					}
+					try {
+						return query.ask(remote.server);
+					} finally {
+						remote.release();
+					}
+				}
+			});
 		}
 
-		Vector<Client> clientList = new Vector<Client>();
-		for (Iterator<Server> iterator = remoteServers.iterator(); iterator.hasNext();) {
-			Server server = (Server) iterator.next();
+		if (tasks.isEmpty()) {
+			return complete;
+		}
+
+		List<Future<Object>> futures;
+		try {
+			futures = remoteQueryExecutor.invokeAll(tasks, remoteQueryTimeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			logger.warning("Remote query interrupted");
+			Thread.currentThread().interrupt();
+			return false;
+		}
 
+		for (int i = 0; i < futures.size(); i++) {
+			String name = servers.get(i).getKey();
+			RemoteServer remote = servers.get(i).getValue();
 			try {
-				Vector<Client> remoteClientList = server.getLocalClientListForResource(query);
-				if (remoteClientList != null) {
-					clientList.addAll(remoteClientList);
+				Object answer = futures.get(i).get();
+				if (answer == SKIPPED) {
+					complete = false;
+					continue;
 				}
-			} catch (RemoteException e) {
-				System.out.println("One server does not respond");
-				iterator.remove();
+				remote.responded();
+				if (answer != null) {
+					answers.add((T) answer);
+				}
+			} catch (CancellationException e) {
+				complete = false;
+				long backoff = remote.timedOut(System.currentTimeMillis());
+				logger.warning("Server " + name + " did not respond in time, skipped for " + backoff + " ms");
+			} catch (ExecutionException e) {
+				complete = false;
+				logger.warning("Server " + name + " does not respond");
+				remoteServers.remove(name, remote);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
 			}
 		}
+		return complete;
+	}
+
+	/**
+	 * Risposta di un server remoto non interrogato perché una chiamata
+	 * precedente è ancora in corso.
+	 */
+	private static final Object SKIPPED = new Object();
+
+	/**
+	 * Server remoto con lo stato delle chiamate che gli sono state inviate.
+	 */
+	static class RemoteServer {
+		private final Server server;
+		private final AtomicBoolean inFlight = new AtomicBoolean(false);
+		private int timeouts = 0;
+		private long retryAt = 0;
+
+		RemoteServer(Server server) {
+			this.server = server;
+		}
+
+		/**
+		 * Ritorna <code>true</code> se il server può essere interrogato
+		 * all'istante <code>now</code>, cioè se non è escluso dopo un
+		 * timeout e non ha una chiamata ancora in corso.
+		 */
+		synchronized boolean isAvailable(long now) {
+			return now >= retryAt && !inFlight.get();
+		}
+
+		boolean acquire() {
+			return inFlight.compareAndSet(false, true);
+		}
+
+		void release() {
+			inFlight.set(false);
+		}
+
+		synchronized void responded() {
+			timeouts = 0;
+			retryAt = 0;
+		}
 
-		if (!clientList.isEmpty()) {
-			return clientList;
+		/**
+		 * Registra un timeout all'istante <code>now</code> ed esclude il
+		 * server per un intervallo che raddoppia a ogni timeout consecutivo.
+		 * Ritorna la durata dell'intervallo.
+		 */
+		synchronized long timedOut(long now) {
+			timeouts++;
+			long backoff = Math.min(remoteQueryTimeout << Math.min(timeouts - 1, 16), remoteBackoffMax);
+			retryAt = now + backoff;
+			return backoff;
 		}
+	}
 
-		return null;
+	/**
+	 * Richiesta da inviare a ciascun server remoto.
+	 */
+	interface RemoteQuery<T> {
+		public T ask(Server server) throws RemoteException;
+	}
+
+	/**
+	 * Aggiunge alle liste di <code>target</code> i client delle liste di
+	 * <code>source</code>, senza duplicati e mantenendo l'ordine.
+	 */
+	private static void merge(Map<Resource, Vector<Client>> target, Map<Resource, Vector<Client>> source) {
+		if (source == null) {
+			return;
+		}
+
+		for (Map.Entry<Resource, Vector<Client>> entry : source.entrySet()) {
+			Vector<Client> clientList = target.get(entry.getKey());
+			if (clientList == null) {
+				target.put(entry.getKey(), new Vector<Client>(entry.getValue()));
+				continue;
+			}
+
+			for (Client client : entry.getValue()) {
+				if (!clientList.contains(client)) {
+					clientList.add(client);
+				}
+			}
+		}
 	}
 
 	/**
@@ -144,31 +500,194 @@ public class ServerImpl extends UnicastRemoteObject implements Server {
 	}
 
 	/**
-	 * Aggiunge il client "client" alla lista dei client, aggiorna la
-	 * lista delle risorse possedute dai client e chiama updateClientList().
+	 * Aggiunge il client "client" alla lista dei client, registra la lista
+	 * completa delle risorse da lui possedute con la relativa versione e
+	 * chiama updateClientList().
 	 * @param client
+	 * @param resources
+	 * @param version
 	 * @see {@link server.ServerImpl#updateClientList}
 	 */
 	@Override
-	public void newClient(Client client) throws RemoteException {
-		remoteClients.add(client);
-		clientsResources.put(client, client.getResourceList());
-		serverGUI.appendLog(client.getClientName() + " connesso");
+	public void newClient(Client client, Vector<Resource> resources, long version) throws RemoteException {
+		synchronized (registrations) {
+			if (!remoteClients.contains(client)) {
+				remoteClients.add(client);
+			}
+			resourceIndex.put(client, resources, version);
+			leases.put(client, System.currentTimeMillis());
+		}
+		if (listeners.isEmpty()) {
+			// the name would cost a call to the client just for the log
+			logger.info("One client connected");
+		} else {
+			log(nameOf(client) + " connesso");
+		}
 		updateClientList();
 	}
 
+	/**
+	 * Registra l'osservatore <code>listener</code> dello stato del server.
+	 * @param listener
+	 */
+	public void addServerListener(ServerListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Rimuove l'osservatore <code>listener</code> dello stato del server.
+	 * @param listener
+	 */
+	public void removeServerListener(ServerListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Scrive nel log il messaggio <code>message</code> per l'utente e lo
+	 * notifica agli osservatori.
+	 */
+	private void log(String message) {
+		logger.info(message);
+		for (ServerListener listener : listeners) {
+			listener.logged(message);
+		}
+	}
+
+	/**
+	 * Notifica agli osservatori la lista dei client connessi. I nomi dei
+	 * client vengono richiesti solo se ci sono osservatori.
+	 */
 	private void updateClientList() {
-		DefaultListModel listModelClient = new DefaultListModel();
-		for (Client c : remoteClients) {
+		if (listeners.isEmpty()) {
+			return;
+		}
+
+		List<String> names = new ArrayList<String>();
+		for (Client c : remoteClients.toArray(new Client[0])) {
+			String name = nameOf(c);
+			if (name != null) {
+				names.add(name);
+			}
+		}
+		for (ServerListener listener : listeners) {
+			listener.clientsChanged(names);
+		}
+	}
+
+	/**
+	 * Ritorna il nome del client "client", richiedendolo al client solo la
+	 * prima volta, oppure <code>null</code> se il client non risponde.
+	 */
+	private String nameOf(Client client) {
+		String name = clientNames.get(client);
+		if (name == null) {
 			try {
-				listModelClient.addElement(c.getClientName());
-			} catch (RemoteException e) { }
+				name = client.getClientName();
+			} catch (RemoteException e) {
+				return null;
+			}
+			if (leases.containsKey(client)) {
+				clientNames.put(client, name);
+			}
 		}
-		serverGUI.setModelClient(listModelClient);
+		return name;
 	}
 	
-	public void updateResources(Client client) throws RemoteException {
-		clientsResources.put(client, client.getResourceList());
+	/**
+	 * Applica le risorse aggiunte e rimosse dal client "client" nella
+	 * versione <code>version</code> della sua lista di risorse. Ritorna
+	 * <code>false</code> se il client non è registrato o se è andata persa
+	 * una versione precedente, nel qual caso il client deve inviare di nuovo
+	 * la lista completa con {@link #newClient(Client, Vector, long)}.
+	 * @param client
+	 * @param version
+	 * @param added
+	 * @param removed
+	 */
+	@Override
+	public boolean updateResources(Client client, long version, Vector<Resource> added, Vector<Resource> removed)
+			throws RemoteException {
+		return resourceIndex.apply(client, version, added, removed);
+	}
+
+	/**
+	 * Registra le parti <code>parts</code> della risorsa
+	 * <code>resource</code> che il client "client" ha già scaricato e può
+	 * inviare agli altri client mentre il download è ancora in corso. Un
+	 * insieme di parti vuoto indica che il client non condivide più la
+	 * risorsa. Ritorna <code>false</code> se il client non è registrato.
+	 * @param client
+	 * @param resource
+	 * @param parts
+	 */
+	@Override
+	public boolean updateParts(Client client, Resource resource, BitSet parts) throws RemoteException {
+		return resourceIndex.updateParts(client, resource, parts);
+	}
+
+	/**
+	 * Rinnova il lease del client "client". Ritorna <code>false</code> se il
+	 * client non è registrato presso il server (ad esempio perché il suo
+	 * lease è scaduto), nel qual caso il client deve chiamare di nuovo
+	 * {@link #newClient(Client, Vector, long)}.
+	 * @param client
+	 */
+	@Override
+	public boolean renewLease(Client client) throws RemoteException {
+		// replace() never resurrects a lease evicted concurrently
+		return leases.replace(client, System.currentTimeMillis()) != null;
+	}
+
+	/**
+	 * Thread che rimuove periodicamente i client il cui lease è scaduto.
+	 * In questo modo la ricerca delle risorse non deve mai contattare i
+	 * client per verificare che siano ancora connessi.
+	 */
+	class LeaseReaper extends Thread {
+
+		private LeaseReaper() {
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while(true) {
+				try {
+					sleep(leaseTtl / 2);
+				} catch (InterruptedException e) {
+					logger.warning("Sleep of LeaseReaper interrupted.");
+				}
+				evictExpiredClients();
+			}
+		}
+
+		private void evictExpiredClients() {
+			long now = System.currentTimeMillis();
+			boolean evicted = false;
+
+			for (Map.Entry<Client, Long> entry : leases.entrySet()) {
+				if (now - entry.getValue() <= leaseTtl) {
+					continue;
+				}
+
+				// remove() fails if the lease was renewed after it was read
+				synchronized (registrations) {
+					if (!leases.remove(entry.getKey(), entry.getValue())) {
+						continue;
+					}
+					Client client = entry.getKey();
+					remoteClients.remove(client);
+					clientNames.remove(client);
+					resourceIndex.remove(client);
+				}
+				evicted = true;
+				logger.info("One client lease expired");
+			}
+
+			if (evicted) {
+				updateClientList();
+			}
+		}
 	}
 	
 	class ServerDaemon extends Thread {
@@ -184,43 +703,73 @@ public class ServerImpl extends UnicastRemoteObject implements Server {
 				try {
 					sleep(2000);
 				} catch (InterruptedException e) {
-					System.out.println("Sleep of ServerDaemon interrupted.");
-					e.printStackTrace();
+					logger.warning("Sleep of ServerDaemon interrupted.");
 				}
 			}
 		}
 
 		/**
-		 * Connette ai server registrati nel registro RMI e aggiorna
-		 * la lista dei server sulla server GUI.
+		 * Aggiorna la tabella dei server remoti con i server registrati nel
+		 * registro RMI. Vengono contattati solo i server non ancora presenti
+		 * nella tabella, mentre vengono rimossi quelli non più registrati.
+		 * La lista dei server sulla server GUI viene aggiornata solo se la
+		 * tabella è cambiata.
 		 */
 		private void connectToServers() {
 			String[] serverList;
 			try { 
 				serverList = Naming.list("rmi://" + HOST + "/Server/");
-				DefaultListModel listModelServer = new DefaultListModel();
+				Set<String> boundNames = new HashSet<String>();
+				boolean changed = false;
 
 				for (int i = 0; i < serverList.length; i++) {
+					int index = serverList[i].lastIndexOf("/Server/");
+					if (index < 0) {
+						continue;
+					}
+
+					String name = serverList[i].substring(index + "/Server/".length());
+					if (serverName.equals(name)) {
+						continue;
+					}
+
+					boundNames.add(name);
+					if (remoteServers.containsKey(name)) {
+						continue;
+					}
+
 					try {
 						Server s = (Server) Naming.lookup("rmi:" + serverList[i]); 
-						if (!serverName.equals(s.getServerName())) {
-							System.out.println(s.getServerName());
-							remoteServers.add(s);
-							listModelServer.addElement(s.getServerName());
-						}
+						remoteServers.put(name, new RemoteServer(s));
+						changed = true;
+						logger.info("Server " + name + " joined");
 					} catch (NotBoundException e) {
-						System.out.println(serverList[i] + " has no associated binding");
+						logger.warning(serverList[i] + " has no associated binding");
 					} catch (RemoteException e) {
-						System.out.println(serverList[i] + " does not respond");
+						logger.warning(serverList[i] + " does not respond");
+					}
+				}
+
+				for (Iterator<String> iterator = remoteServers.keySet().iterator(); iterator.hasNext();) {
+					String name = iterator.next();
+					if (!boundNames.contains(name)) {
+						iterator.remove();
+						changed = true;
+						logger.info("Server " + name + " left");
 					}
 				}
 
-				serverGUI.setModelServer(listModelServer);
+				if (changed) {
+					List<String> serverNames = new ArrayList<String>(remoteServers.keySet());
+					for (ServerListener listener : listeners) {
+						listener.serversChanged(serverNames);
+					}
+				}
 
 			} catch (RemoteException e) {
-				e.printStackTrace();
+				logger.error("Cannot list the servers", e);
 			} catch (MalformedURLException e) {
-				e.printStackTrace();
+				logger.error("Cannot list the servers", e);
 			}
 		}
 
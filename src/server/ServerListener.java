@@ -0,0 +1,37 @@
+package server;
+
+import java.util.List;
+
+/**
+ * <p>
+ * Osservatore dello stato di un server. I metodi vengono chiamati dai thread
+ * del server, anche contemporaneamente, e non devono quindi bloccare:
+ * un'interfaccia grafica deve rimandare gli aggiornamenti al thread di
+ * event-dispatching.
+ * </p>
+ * <p>
+ * Senza osservatori registrati il server non esegue alcun lavoro per
+ * notificare il proprio stato.
+ * </p>
+ * @see {@link ServerImpl#addServerListener(ServerListener)}
+ */
+public interface ServerListener {
+
+	/**
+	 * Chiamato per ogni messaggio destinato all'utente.
+	 * @param message
+	 */
+	public void logged(String message);
+
+	/**
+	 * Chiamato quando cambia la lista dei client connessi.
+	 * @param clientNames nomi dei client connessi
+	 */
+	public void clientsChanged(List<String> clientNames);
+
+	/**
+	 * Chiamato quando cambia la lista dei server remoti.
+	 * @param serverNames nomi dei server remoti
+	 */
+	public void serversChanged(List<String> serverNames);
+}
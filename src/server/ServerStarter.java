@@ -4,6 +4,15 @@ import java.net.MalformedURLException;
 import java.rmi.RemoteException;
 
 public class ServerStarter {
+
+	/**
+	 * Tempo massimo in millisecondi di attesa della risposta a una chiamata
+	 * RMI, oltre il quale la chiamata fallisce e libera il thread che la
+	 * esegue. Configurabile con la proprietà di sistema
+	 * <code>server.rmiResponseTimeout</code>, se non è già impostata
+	 * <code>sun.rmi.transport.tcp.responseTimeout</code>.
+	 */
+	private static final long rmiResponseTimeout = Long.getLong("server.rmiResponseTimeout", 10000);
 	
 	/**
 	 * Crea un server con il nome passato come argomento date.
@@ -11,6 +20,11 @@ public class ServerStarter {
 	 * @throws MalformedURLException 
 	 */
 	public static void main(String[] args) throws MalformedURLException {
+		// Must be set before the RMI transport opens its first connection
+		if (System.getProperty("sun.rmi.transport.tcp.responseTimeout") == null) {
+			System.setProperty("sun.rmi.transport.tcp.responseTimeout", String.valueOf(rmiResponseTimeout));
+		}
+
 		try {
 			new ServerImpl(args[0]);
 			
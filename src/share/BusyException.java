@@ -0,0 +1,13 @@
+package share;
+
+/**
+ * Eccezione lanciata da un client che non ha slot di upload liberi. Chi la
+ * riceve non deve considerare il client guasto, ma riprovare più tardi.
+ */
+public class BusyException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	public BusyException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,25 @@
+package share;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Implementazione di {@link ThreadFactory} che crea thread daemon numerati
+ * con il prefisso dato, in modo che i pool di thread non impediscano la
+ * terminazione della JVM.
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+	private String prefix;
+	private AtomicInteger count = new AtomicInteger(0);
+
+	public DaemonThreadFactory(String prefix) {
+		this.prefix = prefix;
+	}
+
+	@Override
+	public Thread newThread(Runnable runnable) {
+		Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
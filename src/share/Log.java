@@ -0,0 +1,215 @@
+package share;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Log asincrono condiviso da tutti i client e server della JVM. I messaggi
+ * vengono inseriti senza attesa in una coda limitata di
+ * <code>bufferSize</code> record e scritti da un thread dedicato sulla
+ * console e, se configurato, su file. Se la coda è piena vengono scartati i
+ * messaggi più recenti, mentre quelli già in coda sono mantenuti; il numero
+ * di messaggi scartati viene riportato nel log, così che chi scrive non
+ * resti mai bloccato in attesa dell'output.
+ * </p>
+ * <p>
+ * Vengono scritti solo i messaggi di livello almeno pari a
+ * <code>log.level</code>. Le proprietà di sistema lette sono:
+ * <ul>
+ * <li><code>log.level</code>: DEBUG, INFO, WARNING o ERROR (INFO)</li>
+ * <li><code>log.bufferSize</code>: numero di record nel buffer (4096)</li>
+ * <li><code>log.console</code>: scrive sulla console (true)</li>
+ * <li><code>log.file</code>: file in cui aggiungere i messaggi, nessuno se
+ * non impostata</li>
+ * </ul>
+ * </p>
+ */
+public class Log {
+
+	/**
+	 * Livelli dei messaggi, in ordine di gravità crescente.
+	 */
+	public enum Level {
+		DEBUG, INFO, WARNING, ERROR
+	}
+
+	private static final Level threshold = Level.valueOf(System.getProperty("log.level", "INFO").toUpperCase());
+	private static final int bufferSize = Integer.getInteger("log.bufferSize", 4096);
+	private static final boolean console = Boolean.parseBoolean(System.getProperty("log.console", "true"));
+	private static final String file = System.getProperty("log.file");
+	private static final BlockingQueue<Record> buffer = new ArrayBlockingQueue<Record>(bufferSize);
+	private static final AtomicLong dropped = new AtomicLong(0);
+	private static final Writer writer = new Writer();
+	private String source;
+
+	static {
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				writer.drain();
+			}
+		});
+	}
+
+	/**
+	 * @param source nome del client o del server che scrive i messaggi
+	 */
+	public Log(String source) {
+		this.source = source;
+	}
+
+	/**
+	 * Ritorna <code>true</code> se i messaggi di livello <code>level</code>
+	 * vengono scritti, così da evitare di comporre messaggi che verrebbero
+	 * scartati.
+	 * @param level
+	 */
+	public boolean isEnabled(Level level) {
+		return level.compareTo(threshold) >= 0;
+	}
+
+	public void debug(String message) {
+		log(Level.DEBUG, message, null);
+	}
+
+	public void info(String message) {
+		log(Level.INFO, message, null);
+	}
+
+	public void warning(String message) {
+		log(Level.WARNING, message, null);
+	}
+
+	public void error(String message) {
+		log(Level.ERROR, message, null);
+	}
+
+	public void error(String message, Throwable cause) {
+		log(Level.ERROR, message, cause);
+	}
+
+	/**
+	 * Inserisce il messaggio nel buffer senza attendere, scartandolo se il
+	 * buffer è pieno.
+	 * @param level
+	 * @param message
+	 * @param cause eccezione di cui scrivere lo stack trace, oppure
+	 * <code>null</code>
+	 */
+	public void log(Level level, String message, Throwable cause) {
+		if (!isEnabled(level)) {
+			return;
+		}
+		if (!buffer.offer(new Record(System.currentTimeMillis(), level, source, message, cause))) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	private static class Record {
+		private long time;
+		private Level level;
+		private String source;
+		private String message;
+		private Throwable cause;
+
+		private Record(long time, Level level, String source, String message, Throwable cause) {
+			this.time = time;
+			this.level = level;
+			this.source = source;
+			this.message = message;
+			this.cause = cause;
+		}
+	}
+
+	/**
+	 * Thread che svuota il buffer scrivendo i record sulle destinazioni
+	 * configurate. L'output viene scaricato solo quando il buffer è vuoto.
+	 */
+	private static class Writer extends Thread {
+		private SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		private PrintWriter fileOutput;
+		private PrintWriter consoleOutput;
+
+		private Writer() {
+			super("log-writer");
+			setDaemon(true);
+			if (console) {
+				consoleOutput = new PrintWriter(System.out);
+			}
+			if (file != null) {
+				try {
+					fileOutput = new PrintWriter(new FileWriter(file, true));
+				} catch (IOException e) {
+					System.err.println("Cannot open the log file " + file);
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			List<Record> batch = new ArrayList<Record>();
+			while (true) {
+				try {
+					batch.add(buffer.take());
+				} catch (InterruptedException e) {
+					return;
+				}
+				buffer.drainTo(batch);
+				write(batch);
+				batch.clear();
+			}
+		}
+
+		/**
+		 * Scrive i record rimasti nel buffer. Chiamato alla chiusura della
+		 * JVM.
+		 */
+		private void drain() {
+			List<Record> batch = new ArrayList<Record>();
+			buffer.drainTo(batch);
+			write(batch);
+		}
+
+		private synchronized void write(List<Record> batch) {
+			long lost = dropped.getAndSet(0);
+			if (lost > 0) {
+				print(format.format(new Date()) + " " + Level.WARNING + " [log] " + lost + " messages dropped", null);
+			}
+			for (Record record : batch) {
+				print(format.format(new Date(record.time)) + " " + record.level + " [" + record.source + "] " + record.message,
+						record.cause);
+			}
+			if (consoleOutput != null) {
+				consoleOutput.flush();
+			}
+			if (fileOutput != null) {
+				fileOutput.flush();
+			}
+		}
+
+		private void print(String line, Throwable cause) {
+			if (consoleOutput != null) {
+				consoleOutput.println(line);
+				if (cause != null) {
+					cause.printStackTrace(consoleOutput);
+				}
+			}
+			if (fileOutput != null) {
+				fileOutput.println(line);
+				if (cause != null) {
+					cause.printStackTrace(fileOutput);
+				}
+			}
+		}
+	}
+}
@@ -1,21 +1,81 @@
 package share;
 
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+
+/**
+ * Identificativo immutabile di una risorsa, composto dal nome e dal numero
+ * di parti. Il nome viene internato, così che le risorse con lo stesso nome
+ * condividano la stessa stringa, e il codice hash viene calcolato una sola
+ * volta: in questo modo una risorsa può essere usata direttamente come
+ * chiave di una mappa ed essere inviata tramite RMI. Le risorse sono
+ * ordinate per nome e, a parità di nome, per numero di parti.
+ */
+public final class Resource implements Serializable, Comparable<Resource> {
+	private static final long serialVersionUID = 1L;
+
+	private final String name;
+	private final int parts;
+	private transient int hash;
 
-public class Resource {
-	String name;
-	int parts;
-	
 	public Resource(String name, int parts) {
-		this.name = name;
+		this.name = name.intern();
 		this.parts = parts;
+		this.hash = 31 * this.name.hashCode() + parts;
 	}
-	
+
+	/**
+	 * Ritorna il nome della risorsa.
+	 * @return String
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Ritorna il numero di parti in cui è divisa la risorsa.
+	 * @return int
+	 */
+	public int getParts() {
+		return parts;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof Resource)) {
+			return false;
+		}
+		Resource other = (Resource) obj;
+		return parts == other.parts && name == other.name;
+	}
+
+	@Override
+	public int compareTo(Resource other) {
+		int byName = name.compareTo(other.name);
+		if (byName != 0) {
+			return byName;
+		}
+		return parts < other.parts ? -1 : (parts == other.parts ? 0 : 1);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
 	@Override
 	public String toString() {
 		return name + " " + parts;
 	}
-	
-	public String[] toArrayStrings() {
-		return new String[]{name, String.valueOf(parts)};
+
+	/**
+	 * Dopo la deserializzazione ricrea la risorsa tramite il costruttore per
+	 * internare il nome e calcolare il codice hash.
+	 */
+	private Object readResolve() throws ObjectStreamException {
+		return new Resource(name, parts);
 	}
 }
@@ -0,0 +1,496 @@
+package sim;
+
+import java.net.InetSocketAddress;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.Vector;
+
+import client.Client;
+import server.Server;
+import share.BusyException;
+import share.Resource;
+
+/**
+ * <p>
+ * Client simulato. Scarica le risorse dagli altri client attraverso
+ * l'interfaccia {@link Client}, come il client reale senza archivio, ma
+ * l'attesa di <code>uploadTime</code> millisecondi per il trasferimento di
+ * una parte è un evento del {@link Simulator} invece di una pausa del
+ * thread.
+ * </p>
+ * <p>
+ * Ogni client serve al più <code>uploadCapacity</code> parti alla volta e
+ * risponde con {@link BusyException} quando non ha slot liberi; le parti già
+ * scaricate vengono comunicate al server e servite agli altri client prima
+ * del termine del download.
+ * </p>
+ * <p>
+ * Limiti: il download non usa lo scheduler di {@link client.ClientImpl}, che
+ * dipende da thread, tempo reale e file, ma una versione semplificata.
+ * Parti e sorgenti sono scelte a caso, senza
+ * {@link client.SelectionStrategy}, statistiche delle sorgenti, parte equa
+ * degli slot di download né modalità endgame; ogni trasferimento dura
+ * esattamente <code>uploadTime</code>, senza timeout per parte, e una
+ * sorgente occupata viene riprovata al successivo avvio di trasferimenti.
+ * La simulazione misura quindi il protocollo tra server e client e la
+ * diffusione delle parti, non le prestazioni dello scheduler reale.
+ * </p>
+ */
+public class SimClient implements Client {
+
+	/**
+	 * Durata in millisecondi di tempo virtuale del trasferimento di una
+	 * parte. Configurabile con la proprietà di sistema
+	 * <code>sim.uploadTime</code>.
+	 */
+	private static final long uploadTime = Long.getLong("sim.uploadTime", 5000);
+
+	/**
+	 * Numero di parti che un client può inviare contemporaneamente.
+	 * Configurabile con la proprietà di sistema
+	 * <code>sim.uploadCapacity</code>.
+	 */
+	private static final int uploadCapacity = Integer.getInteger("sim.uploadCapacity", 4);
+
+	/**
+	 * Attesa in millisecondi di tempo virtuale prima di cercare di nuovo
+	 * una parte quando nessun client può inviarne. Configurabile con la
+	 * proprietà di sistema <code>sim.retryDelay</code>.
+	 */
+	private static final long retryDelay = Long.getLong("sim.retryDelay", 1000);
+
+	/**
+	 * Numero di tentativi consecutivi senza progressi dopo i quali un
+	 * download fallisce. Configurabile con la proprietà di sistema
+	 * <code>sim.maxRetries</code>.
+	 */
+	private static final int maxRetries = Integer.getInteger("sim.maxRetries", 30);
+
+	/**
+	 * Numero massimo di client, scelti a caso tra quelli ritornati dal
+	 * server, da cui viene scaricata una risorsa. Configurabile con la
+	 * proprietà di sistema <code>sim.maxSources</code>.
+	 */
+	private static final int maxSources = Integer.getInteger("sim.maxSources", 20);
+	private Simulator simulator;
+	private Statistics statistics;
+	private String clientName;
+	private int downloadCapacity;
+	private Server server;
+	private boolean online = false;
+	private long resourceVersion = 0;
+
+	/**
+	 * Numero di connessioni del client, usato per ignorare gli eventi
+	 * programmati prima di una disconnessione.
+	 */
+	private long session = 0;
+	private int uploads = 0;
+	private int transfers = 0;
+	private Set<Resource> resourceList = new LinkedHashSet<Resource>();
+	private Map<Resource, Download> activeDownloads = new LinkedHashMap<Resource, Download>();
+
+	public SimClient(Simulator simulator, Statistics statistics, String clientName, int downloadCapacity,
+			Collection<Resource> resources) {
+		this.simulator = simulator;
+		this.statistics = statistics;
+		this.clientName = clientName;
+		this.downloadCapacity = downloadCapacity;
+		this.resourceList.addAll(resources);
+	}
+
+	/**
+	 * Connette il client al server <code>server</code> comunicandogli la
+	 * lista completa delle risorse possedute.
+	 * @param server
+	 */
+	public void connect(Server server) {
+		if (online) {
+			return;
+		}
+
+		this.server = server;
+		this.online = true;
+		this.session++;
+		try {
+			server.newClient(this, new Vector<Resource>(resourceList), resourceVersion);
+		} catch (RemoteException e) {
+			online = false;
+		}
+	}
+
+	/**
+	 * Disconnette il client annullando i download in corso. Le parti già
+	 * scaricate delle risorse incomplete vengono perse.
+	 */
+	public void disconnect() {
+		if (!online) {
+			return;
+		}
+
+		online = false;
+		for (Download download : activeDownloads.values()) {
+			download.cancelled = true;
+			statistics.downloadAborted();
+		}
+		activeDownloads.clear();
+		uploads = 0;
+		transfers = 0;
+		try {
+			server.closeClient(this);
+		} catch (RemoteException e) { }
+	}
+
+	public boolean isOnline() {
+		return online;
+	}
+
+	/**
+	 * Ritorna <code>true</code> se il client possiede la risorsa o la sta
+	 * scaricando.
+	 * @param resource
+	 */
+	public boolean hasOrWants(Resource resource) {
+		return resourceList.contains(resource) || activeDownloads.containsKey(resource);
+	}
+
+	/**
+	 * Cerca la risorsa <code>resource</code> e ne avvia il download.
+	 * Ritorna <code>false</code> se il client è disconnesso, possiede già la
+	 * risorsa o nessun altro client la possiede.
+	 * @param resource
+	 */
+	public boolean search(Resource resource) {
+		if (!online || hasOrWants(resource)) {
+			return false;
+		}
+
+		Vector<Client> clientList;
+		try {
+			clientList = server.getClientListForResource(resource);
+		} catch (RemoteException e) {
+			clientList = new Vector<Client>();
+		}
+		clientList.remove(this);
+		statistics.searched(!clientList.isEmpty());
+		if (clientList.isEmpty()) {
+			return false;
+		}
+
+		Download download = new Download(resource);
+		download.addSources(clientList);
+		activeDownloads.put(resource, download);
+		statistics.downloadStarted();
+		download.pump();
+		return true;
+	}
+
+	/**
+	 * Occupa uno slot di upload per il tempo di trasferimento di una parte.
+	 * Il trasferimento stesso è simulato da chi scarica.
+	 */
+	@Override
+	public Boolean download(String requester) throws RemoteException, BusyException {
+		checkOnline();
+		if (uploads >= uploadCapacity) {
+			statistics.busy();
+			throw new BusyException("Nessuno slot di upload libero");
+		}
+
+		uploads++;
+		final long current = session;
+		simulator.schedule(uploadTime, new Runnable() {
+			public void run() {
+				if (session == current) {
+					uploads--;
+				}
+			}
+		});
+		return true;
+	}
+
+	@Override
+	public byte[] downloadChunk(String requester, Resource resource, int part, long offset, int length)
+			throws RemoteException {
+		throw new RemoteException("Parts are not stored in the simulation");
+	}
+
+	@Override
+	public String getClientName() {
+		return clientName;
+	}
+
+	@Override
+	public BitSet getAvailableParts(Resource resource) throws RemoteException {
+		checkOnline();
+		BitSet available = new BitSet(resource.getParts());
+		if (resourceList.contains(resource)) {
+			available.set(0, resource.getParts());
+		} else if (activeDownloads.containsKey(resource)) {
+			available.or(activeDownloads.get(resource).completed);
+		}
+		return available;
+	}
+
+	@Override
+	public InetSocketAddress getDataEndpoint() {
+		return null;
+	}
+
+	@Override
+	public byte[][] getPartDigests(Resource resource) {
+		return null;
+	}
+
+	@Override
+	public long getResourceSize(Resource resource) {
+		return -1;
+	}
+
+	@Override
+	public boolean ping() throws RemoteException {
+		checkOnline();
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return clientName;
+	}
+
+	private void checkOnline() throws RemoteException {
+		if (!online) {
+			throw new RemoteException(clientName + " is offline");
+		}
+	}
+
+	/**
+	 * Prova ad avviare nuovi trasferimenti per tutti i download in corso.
+	 */
+	private void pumpAll() {
+		for (Download download : new ArrayList<Download>(activeDownloads.values())) {
+			download.pump();
+		}
+	}
+
+	/**
+	 * Download simulato di una risorsa, con scelta casuale delle parti e
+	 * delle sorgenti.
+	 */
+	private class Download {
+		private Resource resource;
+		private List<Client> sources = new ArrayList<Client>();
+		private BitSet completed = new BitSet();
+		private BitSet requested = new BitSet();
+		private long startTime;
+		private int retries = 0;
+		private boolean retryScheduled = false;
+		private boolean cancelled = false;
+
+		private Download(Resource resource) {
+			this.resource = resource;
+			this.startTime = simulator.now();
+		}
+
+		/**
+		 * Aggiunge alle sorgenti del download al più
+		 * <code>maxSources</code> client di <code>clientList</code>, scelti
+		 * a caso. I client vengono prima ordinati per nome, così che la
+		 * scelta dipenda solo dal seme della simulazione.
+		 */
+		private void addSources(Vector<Client> clientList) {
+			List<Client> candidates = new ArrayList<Client>(clientList);
+			candidates.removeAll(sources);
+			candidates.remove(SimClient.this);
+			Collections.sort(candidates, new Comparator<Client>() {
+				public int compare(Client a, Client b) {
+					return nameOf(a).compareTo(nameOf(b));
+				}
+			});
+			Collections.shuffle(candidates, simulator.getRandom());
+			for (int i = 0; i < candidates.size() && sources.size() < maxSources; i++) {
+				sources.add(candidates.get(i));
+			}
+		}
+
+		/**
+		 * Avvia trasferimenti finché ci sono slot di download liberi e
+		 * parti disponibili. Se nessuna parte è in trasferimento e non è
+		 * stato possibile avviarne, riprova dopo <code>retryDelay</code>.
+		 */
+		private void pump() {
+			if (cancelled) {
+				return;
+			}
+
+			while (transfers < downloadCapacity && startTransfer()) {
+				// keep filling the download slots
+			}
+			if (transfers < downloadCapacity && requested.isEmpty() && !retryScheduled) {
+				scheduleRetry();
+			}
+		}
+
+		/**
+		 * Richiede una parte mancante a una delle sorgenti, partendo da una
+		 * sorgente a caso. Ritorna <code>false</code> se nessuna sorgente
+		 * può inviare parti.
+		 */
+		private boolean startTransfer() {
+			Random random = simulator.getRandom();
+			List<Client> candidates = new ArrayList<Client>(sources);
+			int first = candidates.isEmpty() ? 0 : random.nextInt(candidates.size());
+			for (int i = 0; i < candidates.size(); i++) {
+				final Client source = candidates.get((first + i) % candidates.size());
+				BitSet missing;
+				try {
+					missing = source.getAvailableParts(resource);
+				} catch (RemoteException e) {
+					sources.remove(source);
+					continue;
+				}
+				missing.andNot(completed);
+				missing.andNot(requested);
+				if (missing.isEmpty()) {
+					continue;
+				}
+
+				try {
+					source.download(clientName);
+				} catch (BusyException e) {
+					continue;
+				} catch (RemoteException e) {
+					sources.remove(source);
+					continue;
+				} catch (CloneNotSupportedException e) {
+					continue;
+				}
+
+				int part = missing.nextSetBit(0);
+				for (int skip = random.nextInt(missing.cardinality()); skip > 0; skip--) {
+					part = missing.nextSetBit(part + 1);
+				}
+				final int requestedPart = part;
+				requested.set(part);
+				transfers++;
+				simulator.schedule(uploadTime, new Runnable() {
+					public void run() {
+						finishTransfer(source, requestedPart);
+					}
+				});
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Termina il trasferimento della parte <code>part</code>. La parte
+		 * è persa se nel frattempo la sorgente si è disconnessa.
+		 */
+		private void finishTransfer(Client source, int part) {
+			if (cancelled) {
+				return;
+			}
+
+			transfers--;
+			requested.clear(part);
+			boolean alive;
+			try {
+				alive = source.ping();
+			} catch (RemoteException e) {
+				alive = false;
+			}
+
+			if (!alive) {
+				sources.remove(source);
+				statistics.partLost();
+			} else {
+				completed.set(part);
+				retries = 0;
+				statistics.partTransferred();
+				if (completed.cardinality() == resource.getParts()) {
+					complete();
+				} else {
+					advertise((BitSet) completed.clone());
+				}
+			}
+			pumpAll();
+		}
+
+		/**
+		 * Aggiunge la risorsa scaricata alla lista delle risorse e la
+		 * comunica al server.
+		 */
+		private void complete() {
+			activeDownloads.remove(resource);
+			resourceList.add(resource);
+			statistics.downloadCompleted(simulator.now() - startTime);
+
+			resourceVersion++;
+			Vector<Resource> added = new Vector<Resource>();
+			added.add(resource);
+			try {
+				if (!server.updateResources(SimClient.this, resourceVersion, added, new Vector<Resource>())) {
+					server.newClient(SimClient.this, new Vector<Resource>(resourceList), resourceVersion);
+				}
+			} catch (RemoteException e) { }
+		}
+
+		/**
+		 * Dopo <code>retryDelay</code> chiede di nuovo al server i client
+		 * che possiedono la risorsa e riprova a scaricarla. Dopo
+		 * <code>maxRetries</code> tentativi senza progressi il download
+		 * fallisce.
+		 */
+		private void scheduleRetry() {
+			if (retries >= maxRetries) {
+				activeDownloads.remove(resource);
+				cancelled = true;
+				statistics.downloadFailed();
+				if (!completed.isEmpty()) {
+					advertise(new BitSet());
+				}
+				return;
+			}
+
+			retries++;
+			retryScheduled = true;
+			simulator.schedule(retryDelay, new Runnable() {
+				public void run() {
+					retryScheduled = false;
+					if (cancelled) {
+						return;
+					}
+					try {
+						addSources(server.getClientListForResource(resource));
+					} catch (RemoteException e) { }
+					pump();
+				}
+			});
+		}
+
+		private void advertise(BitSet parts) {
+			try {
+				server.updateParts(SimClient.this, resource, parts);
+			} catch (RemoteException e) { }
+		}
+	}
+
+	private static String nameOf(Client client) {
+		try {
+			return client.getClientName();
+		} catch (RemoteException e) {
+			return "";
+		}
+	}
+}
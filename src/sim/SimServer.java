@@ -0,0 +1,153 @@
+package sim;
+
+import java.rmi.RemoteException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.Vector;
+
+import client.Client;
+import server.ResourceIndex;
+import server.Server;
+import share.Resource;
+
+/**
+ * Server simulato. Mantiene le risorse dei propri client con lo stesso
+ * {@link ResourceIndex} del server reale e inoltra le ricerche a tutti gli
+ * altri server della simulazione con chiamate dirette al posto di RMI.
+ */
+public class SimServer implements Server {
+	private String serverName;
+	private List<SimServer> network;
+	private ResourceIndex resourceIndex = new ResourceIndex();
+	private Set<Client> clients = new HashSet<Client>();
+
+	/**
+	 * @param serverName
+	 * @param network lista di tutti i server della simulazione, compreso
+	 * questo
+	 */
+	public SimServer(String serverName, List<SimServer> network) {
+		this.serverName = serverName;
+		this.network = network;
+	}
+
+	@Override
+	public void closeClient(Client client) throws RemoteException {
+		clients.remove(client);
+		resourceIndex.remove(client);
+	}
+
+	@Override
+	public Vector<Client> getClientListForResource(Resource query) throws RemoteException {
+		Vector<Resource> queries = new Vector<Resource>();
+		queries.add(query);
+		Vector<Client> clientList = getClientListForResources(queries).get(query);
+		return clientList != null ? clientList : new Vector<Client>();
+	}
+
+	/**
+	 * Ritorna per ogni risorsa l'unione dei client che la possiedono presso
+	 * questo server e presso tutti gli altri server della simulazione.
+	 */
+	@Override
+	public Map<Resource, Vector<Client>> getClientListForResources(Vector<Resource> queries) throws RemoteException {
+		Map<Resource, Vector<Client>> clientLists = getLocalClientListForResources(queries);
+		for (SimServer server : network) {
+			if (server == this) {
+				continue;
+			}
+			for (Map.Entry<Resource, Vector<Client>> entry : server.getLocalClientListForResources(queries).entrySet()) {
+				Vector<Client> clientList = clientLists.get(entry.getKey());
+				if (clientList == null) {
+					clientLists.put(entry.getKey(), entry.getValue());
+					continue;
+				}
+				for (Client client : entry.getValue()) {
+					if (!clientList.contains(client)) {
+						clientList.add(client);
+					}
+				}
+			}
+		}
+		return clientLists;
+	}
+
+	@Override
+	public Vector<Client> getLocalClientListForResource(Resource query) throws RemoteException {
+		return resourceIndex.getHolders(query);
+	}
+
+	@Override
+	public Map<Resource, Vector<Client>> getLocalClientListForResources(Vector<Resource> queries) throws RemoteException {
+		Map<Resource, Vector<Client>> clientLists = new HashMap<Resource, Vector<Client>>();
+		for (Resource query : queries) {
+			Vector<Client> clientList = resourceIndex.getHolders(query);
+			if (!clientList.isEmpty()) {
+				clientLists.put(query, clientList);
+			}
+		}
+		return clientLists;
+	}
+
+	@Override
+	public Vector<Resource> findResources(String pattern, Resource after, int limit) throws RemoteException {
+		TreeSet<Resource> found = new TreeSet<Resource>();
+		for (SimServer server : network) {
+			found.addAll(server.findLocalResources(pattern, after, limit));
+		}
+
+		Vector<Resource> result = new Vector<Resource>();
+		for (Resource resource : found) {
+			if (result.size() >= limit) {
+				break;
+			}
+			result.add(resource);
+		}
+		return result;
+	}
+
+	@Override
+	public Vector<Resource> findLocalResources(String pattern, Resource after, int limit) throws RemoteException {
+		return resourceIndex.find(pattern, after, limit);
+	}
+
+	@Override
+	public String getServerName() throws RemoteException {
+		return serverName;
+	}
+
+	@Override
+	public void newClient(Client client, Vector<Resource> resources, long version) throws RemoteException {
+		clients.add(client);
+		resourceIndex.put(client, resources, version);
+	}
+
+	@Override
+	public boolean renewLease(Client client) throws RemoteException {
+		return clients.contains(client);
+	}
+
+	@Override
+	public boolean updateParts(Client client, Resource resource, BitSet parts) throws RemoteException {
+		return resourceIndex.updateParts(client, resource, parts);
+	}
+
+	@Override
+	public boolean updateResources(Client client, long version, Vector<Resource> added, Vector<Resource> removed)
+			throws RemoteException {
+		return resourceIndex.apply(client, version, added, removed);
+	}
+
+	/**
+	 * Ritorna il numero di client connessi.
+	 * @return int
+	 */
+	public int getClientCount() {
+		return clients.size();
+	}
+}
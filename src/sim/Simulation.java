@@ -0,0 +1,87 @@
+package sim;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import share.Resource;
+
+/**
+ * Rete simulata di server e client eseguita in una sola JVM. I server si
+ * conoscono tutti tra loro, come i server reali registrati nello stesso
+ * registro RMI, e ogni client si connette a uno dei server. I client
+ * simulati usano un download semplificato: vedi {@link SimClient}.
+ */
+public class Simulation {
+	private Simulator simulator;
+	private Statistics statistics = new Statistics();
+	private List<SimServer> servers = new ArrayList<SimServer>();
+	private List<SimClient> clients = new ArrayList<SimClient>();
+
+	/**
+	 * @param seed seme della simulazione
+	 */
+	public Simulation(long seed) {
+		this.simulator = new Simulator(seed);
+	}
+
+	public Simulator getSimulator() {
+		return simulator;
+	}
+
+	public Statistics getStatistics() {
+		return statistics;
+	}
+
+	public List<SimServer> getServers() {
+		return servers;
+	}
+
+	public List<SimClient> getClients() {
+		return clients;
+	}
+
+	/**
+	 * Aggiunge alla rete il server <code>serverName</code>.
+	 * @param serverName
+	 * @return SimServer
+	 */
+	public SimServer addServer(String serverName) {
+		SimServer server = new SimServer(serverName, servers);
+		servers.add(server);
+		return server;
+	}
+
+	/**
+	 * Crea il client <code>clientName</code>, che possiede le risorse
+	 * <code>resources</code>. Il client deve poi essere connesso con
+	 * {@link #connect(SimClient)}.
+	 * @param clientName
+	 * @param downloadCapacity
+	 * @param resources
+	 * @return SimClient
+	 */
+	public SimClient addClient(String clientName, int downloadCapacity, Collection<Resource> resources) {
+		SimClient client = new SimClient(simulator, statistics, clientName, downloadCapacity, resources);
+		clients.add(client);
+		return client;
+	}
+
+	/**
+	 * Connette il client <code>client</code> a un server scelto a caso.
+	 * @param client
+	 */
+	public void connect(SimClient client) {
+		client.connect(servers.get(simulator.getRandom().nextInt(servers.size())));
+	}
+
+	/**
+	 * Esegue la simulazione fino all'istante <code>until</code> di tempo
+	 * virtuale.
+	 * @param until
+	 * @return numero di eventi eseguiti
+	 */
+	public long run(long until) {
+		return simulator.run(until);
+	}
+}
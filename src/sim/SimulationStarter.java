@@ -0,0 +1,90 @@
+package sim;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import share.Resource;
+
+public class SimulationStarter {
+
+	/**
+	 * <p>
+	 * Esegue una simulazione con i parametri letti dalle proprietà di
+	 * sistema:
+	 * <ul>
+	 * <li><code>sim.seed</code>: seme della simulazione (1)</li>
+	 * <li><code>sim.servers</code>: numero di server (10)</li>
+	 * <li><code>sim.clients</code>: numero di client (1000)</li>
+	 * <li><code>sim.resources</code>: numero di risorse (100)</li>
+	 * <li><code>sim.parts</code>: numero di parti di ogni risorsa (8)</li>
+	 * <li><code>sim.replicas</code>: numero di client che possiedono
+	 * inizialmente ogni risorsa (2)</li>
+	 * <li><code>sim.downloadCapacity</code>: download contemporanei di ogni
+	 * client (3)</li>
+	 * <li><code>sim.searches</code>: numero di ricerche (pari al numero di
+	 * client)</li>
+	 * <li><code>sim.searchWindow</code>: intervallo in millisecondi di tempo
+	 * virtuale in cui le ricerche sono distribuite uniformemente
+	 * (600000)</li>
+	 * <li><code>sim.duration</code>: durata in millisecondi di tempo virtuale
+	 * della simulazione (3600000)</li>
+	 * </ul>
+	 * </p>
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		long seed = Long.getLong("sim.seed", 1);
+		int serverCount = Integer.getInteger("sim.servers", 10);
+		int clientCount = Integer.getInteger("sim.clients", 1000);
+		int resourceCount = Integer.getInteger("sim.resources", 100);
+		int parts = Integer.getInteger("sim.parts", 8);
+		int replicas = Integer.getInteger("sim.replicas", 2);
+		int downloadCapacity = Integer.getInteger("sim.downloadCapacity", 3);
+		int searches = Integer.getInteger("sim.searches", clientCount);
+		long searchWindow = Long.getLong("sim.searchWindow", 600000);
+		long duration = Long.getLong("sim.duration", 3600000);
+
+		long wallStart = System.currentTimeMillis();
+		Simulation simulation = new Simulation(seed);
+		Random random = simulation.getSimulator().getRandom();
+		for (int i = 0; i < serverCount; i++) {
+			simulation.addServer("S" + i);
+		}
+
+		List<Resource> resources = new ArrayList<Resource>();
+		List<List<Resource>> owned = new ArrayList<List<Resource>>();
+		for (int i = 0; i < clientCount; i++) {
+			owned.add(new ArrayList<Resource>());
+		}
+		for (int i = 0; i < resourceCount; i++) {
+			Resource resource = new Resource("R" + i, parts);
+			resources.add(resource);
+			for (int j = 0; j < replicas && clientCount > 0; j++) {
+				owned.get(random.nextInt(clientCount)).add(resource);
+			}
+		}
+
+		for (int i = 0; i < clientCount; i++) {
+			simulation.connect(simulation.addClient("C" + i, downloadCapacity, owned.get(i)));
+		}
+
+		List<SimClient> clients = Collections.unmodifiableList(simulation.getClients());
+		for (int i = 0; i < searches && clientCount > 0 && resourceCount > 0; i++) {
+			final SimClient client = clients.get(random.nextInt(clientCount));
+			final Resource resource = resources.get(random.nextInt(resourceCount));
+			simulation.getSimulator().schedule((long) (random.nextDouble() * searchWindow), new Runnable() {
+				public void run() {
+					client.search(resource);
+				}
+			});
+		}
+
+		long events = simulation.run(duration);
+		System.out.println("Simulated " + serverCount + " servers and " + clientCount + " clients for "
+				+ simulation.getSimulator().now() + " ms of virtual time: " + events + " events in "
+				+ (System.currentTimeMillis() - wallStart) + " ms");
+		System.out.println(simulation.getStatistics());
+	}
+}
@@ -0,0 +1,122 @@
+package sim;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * <p>
+ * Motore di simulazione a eventi discreti. Il tempo è virtuale: ogni evento
+ * è eseguito all'istante in cui è stato programmato e l'orologio avanza
+ * direttamente all'evento successivo, senza attese reali. Gli eventi
+ * programmati per lo stesso istante vengono eseguiti nell'ordine in cui
+ * sono stati programmati.
+ * </p>
+ * <p>
+ * La simulazione è eseguita da un solo thread, quindi nessuna classe del
+ * pacchetto è sincronizzata. Tutte le scelte casuali usano il generatore del
+ * simulatore, così che con lo stesso seme la simulazione sia ripetibile.
+ * </p>
+ */
+public class Simulator {
+	private PriorityQueue<Event> events = new PriorityQueue<Event>();
+	private long now = 0;
+	private long sequence = 0;
+	private long processed = 0;
+	private Random random;
+
+	/**
+	 * @param seed seme del generatore di numeri casuali
+	 */
+	public Simulator(long seed) {
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Ritorna l'istante corrente in millisecondi di tempo virtuale.
+	 * @return long
+	 */
+	public long now() {
+		return now;
+	}
+
+	public Random getRandom() {
+		return random;
+	}
+
+	/**
+	 * Ritorna il numero di eventi eseguiti finora.
+	 * @return long
+	 */
+	public long getProcessed() {
+		return processed;
+	}
+
+	/**
+	 * Ritorna il numero di eventi ancora da eseguire.
+	 * @return int
+	 */
+	public int getPending() {
+		return events.size();
+	}
+
+	/**
+	 * Programma l'evento <code>action</code> dopo <code>delay</code>
+	 * millisecondi di tempo virtuale.
+	 * @param delay
+	 * @param action
+	 */
+	public void schedule(long delay, Runnable action) {
+		at(now + Math.max(0, delay), action);
+	}
+
+	/**
+	 * Programma l'evento <code>action</code> all'istante <code>time</code>,
+	 * oppure subito se l'istante è già passato.
+	 * @param time
+	 * @param action
+	 */
+	public void at(long time, Runnable action) {
+		events.add(new Event(Math.max(now, time), sequence++, action));
+	}
+
+	/**
+	 * Esegue in ordine gli eventi programmati fino all'istante
+	 * <code>until</code> compreso, oppure finché non ne restano. Ritorna il
+	 * numero di eventi eseguiti.
+	 * @param until
+	 * @return long
+	 */
+	public long run(long until) {
+		long count = 0;
+		while (!events.isEmpty() && events.peek().time <= until) {
+			Event event = events.poll();
+			now = event.time;
+			event.action.run();
+			count++;
+		}
+		processed += count;
+		return count;
+	}
+
+	private static class Event implements Comparable<Event> {
+		private long time;
+		private long sequence;
+		private Runnable action;
+
+		private Event(long time, long sequence, Runnable action) {
+			this.time = time;
+			this.sequence = sequence;
+			this.action = action;
+		}
+
+		public int compareTo(Event other) {
+			if (time != other.time) {
+				return time < other.time ? -1 : 1;
+			}
+			if (sequence != other.sequence) {
+				return sequence < other.sequence ? -1 : 1;
+			}
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package sim;
+
+/**
+ * Contatori raccolti durante una simulazione. I tempi sono in millisecondi
+ * di tempo virtuale. I download sono quelli semplificati di
+ * {@link SimClient} e non dello scheduler reale, per cui i contatori
+ * misurano solo il protocollo tra server e client: la loro descrizione
+ * testuale è marcata come tale, così che non venga confrontata con le
+ * prestazioni dello scheduler.
+ */
+public class Statistics {
+	private long searches = 0;
+	private long notFound = 0;
+	private long started = 0;
+	private long completed = 0;
+	private long failed = 0;
+	private long aborted = 0;
+	private long partsTransferred = 0;
+	private long partsLost = 0;
+	private long busyResponses = 0;
+	private long totalDownloadTime = 0;
+	private long maxDownloadTime = 0;
+
+	void searched(boolean found) {
+		searches++;
+		if (!found) {
+			notFound++;
+		}
+	}
+
+	void downloadStarted() {
+		started++;
+	}
+
+	void downloadCompleted(long time) {
+		completed++;
+		totalDownloadTime += time;
+		maxDownloadTime = Math.max(maxDownloadTime, time);
+	}
+
+	void downloadFailed() {
+		failed++;
+	}
+
+	void downloadAborted() {
+		aborted++;
+	}
+
+	void partTransferred() {
+		partsTransferred++;
+	}
+
+	void partLost() {
+		partsLost++;
+	}
+
+	void busy() {
+		busyResponses++;
+	}
+
+	public long getCompleted() {
+		return completed;
+	}
+
+	public long getStarted() {
+		return started;
+	}
+
+	/**
+	 * Ritorna il tempo medio di download delle risorse completate.
+	 * @return long
+	 */
+	public long getMeanDownloadTime() {
+		return completed > 0 ? totalDownloadTime / completed : 0;
+	}
+
+	@Override
+	public String toString() {
+		return "[protocol only, simplified downloads] searches " + searches + " (not found " + notFound + "), downloads started " + started + ", completed "
+				+ completed + ", failed " + failed + ", aborted " + aborted + ", parts transferred " + partsTransferred
+				+ ", parts lost " + partsLost + ", busy responses " + busyResponses + ", mean download time "
+				+ getMeanDownloadTime() + " ms, max download time " + maxDownloadTime + " ms";
+	}
+}
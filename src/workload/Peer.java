@@ -0,0 +1,27 @@
+package workload;
+
+import share.Resource;
+
+/**
+ * Client guidato dal carico, reale o simulato.
+ */
+public interface Peer {
+
+	/**
+	 * Connette il client alla rete. La prima volta il client viene creato
+	 * con le risorse che possiede inizialmente.
+	 */
+	public void join();
+
+	/**
+	 * Disconnette il client dalla rete.
+	 */
+	public void leave();
+
+	/**
+	 * Cerca la risorsa <code>resource</code> e ne avvia il download. Ritorna
+	 * <code>false</code> se il download non è stato avviato.
+	 * @param resource
+	 */
+	public boolean search(Resource resource);
+}
@@ -0,0 +1,139 @@
+package workload;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * <p>
+ * Scenario di carico letto da un file di proprietà. Le chiavi riconosciute,
+ * con i valori predefiniti, sono:
+ * <ul>
+ * <li><code>seed</code>: seme del generatore del carico (1)</li>
+ * <li><code>duration</code>: durata in millisecondi (600000)</li>
+ * <li><code>peers</code>: numero di client (100)</li>
+ * <li><code>downloadCapacity</code>: download contemporanei di ogni client
+ * (3)</li>
+ * <li><code>resources</code>: numero di risorse (50)</li>
+ * <li><code>parts</code>: numero di parti di ogni risorsa (4)</li>
+ * <li><code>replicas</code>: numero di client che possiedono inizialmente
+ * ogni risorsa (2)</li>
+ * <li><code>zipf</code>: esponente della distribuzione di Zipf della
+ * popolarità delle risorse, 0 per una distribuzione uniforme (1.0)</li>
+ * <li><code>searchRate</code>: ricerche al secondo dell'intera rete
+ * (1.0)</li>
+ * <li><code>initialOnline</code>: frazione dei client connessi all'inizio
+ * (1.0)</li>
+ * <li><code>sessionLength</code>: durata media in millisecondi di una
+ * connessione, 0 per non disconnettere mai i client (0)</li>
+ * <li><code>offlineLength</code>: durata media in millisecondi di una
+ * disconnessione (60000)</li>
+ * <li><code>flashCrowd.N.time</code>, <code>flashCrowd.N.resource</code>,
+ * <code>flashCrowd.N.size</code>, <code>flashCrowd.N.spread</code>: per
+ * N = 0, 1, ... istante di inizio, rango della risorsa, numero di ricerche e
+ * intervallo in millisecondi in cui sono distribuite (10000)</li>
+ * </ul>
+ * </p>
+ * <p>
+ * Per l'esecuzione con client reali sono lette anche
+ * <code>liveServers</code>, nomi dei server a cui connettere i client
+ * separati da virgole, <code>timeScale</code>, fattore per cui sono
+ * moltiplicati gli istanti del carico (1.0), e <code>liveThreads</code>,
+ * numero di thread che eseguono le azioni (64). Per la simulazione è letto
+ * <code>simServers</code>, numero di server simulati (10).
+ * </p>
+ */
+public class Scenario {
+	private Properties properties = new Properties();
+
+	public Scenario(Properties properties) {
+		this.properties.putAll(properties);
+	}
+
+	/**
+	 * Legge lo scenario dal file <code>fileName</code>.
+	 * @param fileName
+	 * @return Scenario
+	 * @throws IOException
+	 */
+	public static Scenario load(String fileName) throws IOException {
+		Properties properties = new Properties();
+		InputStreamReader reader = new InputStreamReader(new FileInputStream(fileName), "UTF-8");
+		try {
+			properties.load(reader);
+		} finally {
+			reader.close();
+		}
+		return new Scenario(properties);
+	}
+
+	public String getString(String key, String defaultValue) {
+		String value = properties.getProperty(key);
+		return value != null ? value.trim() : defaultValue;
+	}
+
+	public long getLong(String key, long defaultValue) {
+		String value = properties.getProperty(key);
+		return value != null ? Long.parseLong(value.trim()) : defaultValue;
+	}
+
+	public int getInt(String key, int defaultValue) {
+		String value = properties.getProperty(key);
+		return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+	}
+
+	public double getDouble(String key, double defaultValue) {
+		String value = properties.getProperty(key);
+		return value != null ? Double.parseDouble(value.trim()) : defaultValue;
+	}
+
+	/**
+	 * Ritorna i flash crowd dello scenario, numerati a partire da 0.
+	 * @return List
+	 */
+	public List<FlashCrowd> getFlashCrowds() {
+		List<FlashCrowd> flashCrowds = new ArrayList<FlashCrowd>();
+		for (int i = 0; properties.getProperty("flashCrowd." + i + ".time") != null; i++) {
+			String prefix = "flashCrowd." + i + ".";
+			flashCrowds.add(new FlashCrowd(getLong(prefix + "time", 0), getInt(prefix + "resource", 0),
+					getInt(prefix + "size", 0), getLong(prefix + "spread", 10000)));
+		}
+		return flashCrowds;
+	}
+
+	/**
+	 * Ricerche concentrate della stessa risorsa in un breve intervallo.
+	 */
+	public static class FlashCrowd {
+		private long time;
+		private int resource;
+		private int size;
+		private long spread;
+
+		private FlashCrowd(long time, int resource, int size, long spread) {
+			this.time = time;
+			this.resource = resource;
+			this.size = size;
+			this.spread = spread;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		public int getResource() {
+			return resource;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		public long getSpread() {
+			return spread;
+		}
+	}
+}
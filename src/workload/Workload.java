@@ -0,0 +1,261 @@
+package workload;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import share.Resource;
+
+/**
+ * <p>
+ * Carico generato da uno {@link Scenario}: il catalogo delle risorse, le
+ * risorse possedute inizialmente da ciascun client e la sequenza ordinata
+ * nel tempo delle connessioni, disconnessioni e ricerche dei client.
+ * </p>
+ * <p>
+ * Il carico è generato interamente all'inizio con un generatore dedicato
+ * inizializzato con il seme dello scenario, quindi lo stesso scenario
+ * produce sempre le stesse azioni, indipendentemente da come vengono
+ * eseguite. Ogni ricerca è assegnata a un client connesso in quell'istante.
+ * </p>
+ */
+public class Workload {
+
+	/**
+	 * Tipi di azione di un client.
+	 */
+	public enum Type {
+		JOIN, LEAVE, SEARCH
+	}
+
+	private List<Resource> resources = new ArrayList<Resource>();
+	private List<List<Resource>> initialResources = new ArrayList<List<Resource>>();
+	private List<Action> actions = new ArrayList<Action>();
+	private int droppedSearches = 0;
+
+	public Workload(Scenario scenario) {
+		Random random = new Random(scenario.getLong("seed", 1));
+		long duration = scenario.getLong("duration", 600000);
+		int peers = scenario.getInt("peers", 100);
+		int resourceCount = scenario.getInt("resources", 50);
+		int parts = scenario.getInt("parts", 4);
+		int replicas = scenario.getInt("replicas", 2);
+		double initialOnline = scenario.getDouble("initialOnline", 1.0);
+		long sessionLength = scenario.getLong("sessionLength", 0);
+		long offlineLength = scenario.getLong("offlineLength", 60000);
+		double searchRate = scenario.getDouble("searchRate", 1.0);
+		double[] popularity = zipf(resourceCount, scenario.getDouble("zipf", 1.0));
+
+		for (int i = 0; i < peers; i++) {
+			initialResources.add(new ArrayList<Resource>());
+		}
+		for (int i = 0; i < resourceCount; i++) {
+			Resource resource = new Resource("R" + i, parts);
+			resources.add(resource);
+			for (int j = 0; j < replicas && peers > 0; j++) {
+				List<Resource> owned = initialResources.get(random.nextInt(peers));
+				if (!owned.contains(resource)) {
+					owned.add(resource);
+				}
+			}
+		}
+
+		// churn: alternate online and offline periods for each peer
+		List<Action> timeline = new ArrayList<Action>();
+		for (int peer = 0; peer < peers; peer++) {
+			boolean online = random.nextDouble() < initialOnline;
+			long time = online ? 0 : exponential(random, offlineLength);
+			while (time < duration) {
+				timeline.add(new Action(time, timeline.size(), Type.JOIN, peer, null));
+				if (sessionLength <= 0) {
+					break;
+				}
+				time += exponential(random, sessionLength);
+				if (time >= duration) {
+					break;
+				}
+				timeline.add(new Action(time, timeline.size(), Type.LEAVE, peer, null));
+				time += exponential(random, offlineLength);
+			}
+		}
+
+		// searches: Poisson arrivals over the whole network plus flash crowds
+		if (searchRate > 0 && resourceCount > 0) {
+			for (long time = exponential(random, 1000 / searchRate); time < duration; time += exponential(random,
+					1000 / searchRate)) {
+				Resource resource = resources.get(sample(random, popularity));
+				timeline.add(new Action(time, timeline.size(), Type.SEARCH, -1, resource));
+			}
+		}
+		for (Scenario.FlashCrowd flashCrowd : scenario.getFlashCrowds()) {
+			Resource resource = resources.get(Math.min(flashCrowd.getResource(), resourceCount - 1));
+			for (int i = 0; i < flashCrowd.getSize(); i++) {
+				long time = flashCrowd.getTime() + (long) (random.nextDouble() * flashCrowd.getSpread());
+				if (time < duration) {
+					timeline.add(new Action(time, timeline.size(), Type.SEARCH, -1, resource));
+				}
+			}
+		}
+		Collections.sort(timeline);
+
+		// assign each search to a peer that is online at that time
+		List<Integer> online = new ArrayList<Integer>();
+		int[] positions = new int[peers];
+		for (Action action : timeline) {
+			if (action.type == Type.JOIN) {
+				positions[action.peer] = online.size();
+				online.add(action.peer);
+			} else if (action.type == Type.LEAVE) {
+				int last = online.remove(online.size() - 1);
+				if (last != action.peer) {
+					online.set(positions[action.peer], last);
+					positions[last] = positions[action.peer];
+				}
+			} else if (online.isEmpty()) {
+				droppedSearches++;
+				continue;
+			} else {
+				action.peer = online.get(random.nextInt(online.size()));
+			}
+			actions.add(action);
+		}
+	}
+
+	/**
+	 * Ritorna il catalogo delle risorse, in ordine di popolarità
+	 * decrescente.
+	 * @return List
+	 */
+	public List<Resource> getResources() {
+		return resources;
+	}
+
+	/**
+	 * Ritorna le risorse possedute inizialmente dal client <code>peer</code>.
+	 * @param peer
+	 * @return List
+	 */
+	public List<Resource> getInitialResources(int peer) {
+		return initialResources.get(peer);
+	}
+
+	public int getPeers() {
+		return initialResources.size();
+	}
+
+	/**
+	 * Ritorna le azioni dei client in ordine di tempo.
+	 * @return List
+	 */
+	public List<Action> getActions() {
+		return actions;
+	}
+
+	/**
+	 * Ritorna il numero di ricerche scartate perché nessun client era
+	 * connesso.
+	 * @return int
+	 */
+	public int getDroppedSearches() {
+		return droppedSearches;
+	}
+
+	/**
+	 * Ritorna la distribuzione cumulativa di Zipf con esponente
+	 * <code>exponent</code> sui ranghi da 0 a <code>count</code> - 1.
+	 */
+	private static double[] zipf(int count, double exponent) {
+		double[] cumulative = new double[count];
+		double total = 0;
+		for (int i = 0; i < count; i++) {
+			total += 1 / Math.pow(i + 1, exponent);
+			cumulative[i] = total;
+		}
+		for (int i = 0; i < count; i++) {
+			cumulative[i] /= total;
+		}
+		return cumulative;
+	}
+
+	/**
+	 * Estrae un rango dalla distribuzione cumulativa <code>cumulative</code>.
+	 */
+	private static int sample(Random random, double[] cumulative) {
+		double value = random.nextDouble();
+		int low = 0;
+		int high = cumulative.length - 1;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (cumulative[middle] < value) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Estrae una durata dalla distribuzione esponenziale di media
+	 * <code>mean</code> millisecondi.
+	 */
+	private static long exponential(Random random, double mean) {
+		return (long) (-Math.log(1 - random.nextDouble()) * mean);
+	}
+
+	/**
+	 * Azione di un client in un istante del carico.
+	 */
+	public static class Action implements Comparable<Action> {
+		private long time;
+		private long sequence;
+		private Type type;
+		private int peer;
+		private Resource resource;
+
+		private Action(long time, long sequence, Type type, int peer, Resource resource) {
+			this.time = time;
+			this.sequence = sequence;
+			this.type = type;
+			this.peer = peer;
+			this.resource = resource;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		public int getPeer() {
+			return peer;
+		}
+
+		/**
+		 * Ritorna la risorsa cercata, <code>null</code> se l'azione non è
+		 * una ricerca.
+		 * @return Resource
+		 */
+		public Resource getResource() {
+			return resource;
+		}
+
+		public int compareTo(Action other) {
+			if (time != other.time) {
+				return time < other.time ? -1 : 1;
+			}
+			if (sequence != other.sequence) {
+				return sequence < other.sequence ? -1 : 1;
+			}
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			return time + " " + type + " " + peer + (resource != null ? " " + resource : "");
+		}
+	}
+}
@@ -0,0 +1,311 @@
+package workload;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.MalformedURLException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Vector;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import client.ClientImpl;
+import share.DaemonThreadFactory;
+import share.Log;
+import share.Resource;
+import sim.SimClient;
+import sim.Simulation;
+
+public class WorkloadStarter {
+	private static Log logger = new Log("workload");
+	private static AtomicInteger joins = new AtomicInteger(0);
+	private static AtomicInteger leaves = new AtomicInteger(0);
+	private static AtomicInteger searches = new AtomicInteger(0);
+	private static AtomicInteger downloads = new AtomicInteger(0);
+
+	/**
+	 * <p>
+	 * Esegue il carico descritto da uno {@link Scenario}.
+	 * </p>
+	 * 
+	 * <p>
+	 * Gli argomenti devono essere in ordine:
+	 * <ol>
+	 * <li>file dello scenario</li>
+	 * <li><code>sim</code> per eseguire il carico sulla simulazione, oppure
+	 * <code>live</code> per eseguirlo con client reali sui server già avviati
+	 * (sim)</li>
+	 * </ol>
+	 * Se la proprietà di sistema <code>workload.trace</code> è impostata, le
+	 * azioni generate vengono scritte nel file indicato, così da poter
+	 * confrontare due esecuzioni dello stesso scenario.
+	 * </p>
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out.println("Indicare il file dello scenario");
+			return;
+		}
+
+		Scenario scenario;
+		Workload workload;
+		try {
+			scenario = Scenario.load(args[0]);
+			workload = new Workload(scenario);
+			writeTrace(workload);
+		} catch (IOException e) {
+			System.out.println("Impossibile leggere lo scenario " + args[0]);
+			return;
+		} catch (NumberFormatException e) {
+			System.out.println("Scenario non valido: " + e.getMessage());
+			return;
+		}
+
+		if (args.length > 1 && args[1].equals("live")) {
+			runLive(scenario, workload);
+		} else {
+			runSimulation(scenario, workload);
+		}
+	}
+
+	/**
+	 * Esegue il carico sulla simulazione, in tempo virtuale. I client
+	 * simulati non usano lo scheduler dei download reale, per cui le
+	 * statistiche misurano solo il protocollo: le modifiche allo scheduler
+	 * vanno confrontate in modalità <code>live</code>.
+	 */
+	private static void runSimulation(Scenario scenario, Workload workload) {
+		long wallStart = System.currentTimeMillis();
+		final Simulation simulation = new Simulation(scenario.getLong("seed", 1));
+		int servers = scenario.getInt("simServers", 10);
+		for (int i = 0; i < servers; i++) {
+			simulation.addServer("S" + i);
+		}
+
+		int downloadCapacity = scenario.getInt("downloadCapacity", 3);
+		final List<Peer> peers = new ArrayList<Peer>();
+		for (int i = 0; i < workload.getPeers(); i++) {
+			final SimClient client = simulation.addClient("C" + i, downloadCapacity, workload.getInitialResources(i));
+			peers.add(new Peer() {
+				public void join() {
+					simulation.connect(client);
+				}
+
+				public void leave() {
+					client.disconnect();
+				}
+
+				public boolean search(Resource resource) {
+					return client.search(resource);
+				}
+			});
+		}
+
+		for (final Workload.Action action : workload.getActions()) {
+			simulation.getSimulator().at(action.getTime(), new Runnable() {
+				public void run() {
+					apply(peers, action);
+				}
+			});
+		}
+
+		long events = simulation.run(scenario.getLong("duration", 600000));
+		System.out.println("Simulated " + workload.getPeers() + " clients on " + servers + " servers: " + events
+				+ " events in " + (System.currentTimeMillis() - wallStart) + " ms");
+		System.out.println(summary(workload));
+		System.out.println(simulation.getStatistics());
+	}
+
+	/**
+	 * Esegue il carico con client reali creati in questa JVM, che si
+	 * connettono ai server indicati dallo scenario. Se non diversamente
+	 * indicato i client non creano l'interfaccia grafica. Le azioni
+	 * effettuano chiamate RMI bloccanti, per cui vengono eseguite da un pool
+	 * di <code>liveThreads</code> thread, così che un'azione lenta non
+	 * ritardi quelle degli altri client. Le azioni di ciascun client sono
+	 * eseguite una alla volta e nell'ordine del carico.
+	 */
+	private static void runLive(Scenario scenario, Workload workload) {
+		if (System.getProperty("client.headless") == null) {
+			System.setProperty("client.headless", "true");
+		}
+
+		String[] serverNames = scenario.getString("liveServers", "").split(" *, *");
+		if (serverNames[0].isEmpty()) {
+			System.out.println("Indicare i server con la proprietà liveServers dello scenario");
+			return;
+		}
+
+		int downloadCapacity = scenario.getInt("downloadCapacity", 3);
+		final List<Peer> peers = new ArrayList<Peer>();
+		List<SerialExecutor> lanes = new ArrayList<SerialExecutor>();
+		ExecutorService pool = Executors.newFixedThreadPool(scenario.getInt("liveThreads", 64), new DaemonThreadFactory(
+				"workload-action"));
+		for (int i = 0; i < workload.getPeers(); i++) {
+			lanes.add(new SerialExecutor(pool));
+			peers.add(new LivePeer("C" + i, serverNames[i % serverNames.length], downloadCapacity, workload
+					.getInitialResources(i)));
+		}
+
+		double timeScale = scenario.getDouble("timeScale", 1.0);
+		// the timer only hands the actions over, in time order, to the lane of their client
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("workload"));
+		for (final Workload.Action action : workload.getActions()) {
+			final SerialExecutor lane = lanes.get(action.getPeer());
+			final Runnable task = new Runnable() {
+				public void run() {
+					apply(peers, action);
+				}
+			};
+			timer.schedule(new Runnable() {
+				public void run() {
+					lane.execute(task);
+				}
+			}, (long) (action.getTime() * timeScale), TimeUnit.MILLISECONDS);
+		}
+
+		try {
+			Thread.sleep((long) (scenario.getLong("duration", 600000) * timeScale));
+		} catch (InterruptedException e) {
+			logger.warning("Workload interrupted");
+		}
+		System.out.println(summary(workload));
+		System.exit(0);
+	}
+
+	/**
+	 * Esegue l'azione <code>action</code> sul client a cui è destinata.
+	 */
+	private static void apply(List<Peer> peers, Workload.Action action) {
+		Peer peer = peers.get(action.getPeer());
+		switch (action.getType()) {
+		case JOIN:
+			joins.incrementAndGet();
+			peer.join();
+			break;
+		case LEAVE:
+			leaves.incrementAndGet();
+			peer.leave();
+			break;
+		case SEARCH:
+			searches.incrementAndGet();
+			if (peer.search(action.getResource())) {
+				downloads.incrementAndGet();
+			}
+			break;
+		}
+	}
+
+	private static String summary(Workload workload) {
+		return "Workload: " + workload.getActions().size() + " actions, joins " + joins + ", leaves " + leaves
+				+ ", searches " + searches + " (dropped " + workload.getDroppedSearches() + "), downloads started "
+				+ downloads;
+	}
+
+	private static void writeTrace(Workload workload) throws IOException {
+		String trace = System.getProperty("workload.trace");
+		if (trace == null) {
+			return;
+		}
+
+		PrintWriter writer = new PrintWriter(new FileWriter(trace));
+		try {
+			for (Workload.Action action : workload.getActions()) {
+				writer.println(action);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Esegue sul pool <code>executor</code> i compiti ricevuti, uno alla
+	 * volta e nell'ordine in cui sono stati ricevuti.
+	 */
+	private static class SerialExecutor implements Executor {
+		private Queue<Runnable> tasks = new LinkedList<Runnable>();
+		private Executor executor;
+		private boolean active = false;
+
+		private SerialExecutor(Executor executor) {
+			this.executor = executor;
+		}
+
+		public synchronized void execute(final Runnable task) {
+			tasks.add(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						scheduleNext();
+					}
+				}
+			});
+			if (!active) {
+				scheduleNext();
+			}
+		}
+
+		private synchronized void scheduleNext() {
+			Runnable next = tasks.poll();
+			active = next != null;
+			if (active) {
+				executor.execute(next);
+			}
+		}
+	}
+
+	/**
+	 * Client reale creato alla prima connessione e riconnesso in seguito
+	 * sempre al proprio server. Le azioni dello stesso client sono eseguite
+	 * una alla volta da un {@link SerialExecutor}.
+	 */
+	private static class LivePeer implements Peer {
+		private String clientName;
+		private String serverName;
+		private int downloadCapacity;
+		private List<Resource> resources;
+		private ClientImpl client;
+
+		private LivePeer(String clientName, String serverName, int downloadCapacity, List<Resource> resources) {
+			this.clientName = clientName;
+			this.serverName = serverName;
+			this.downloadCapacity = downloadCapacity;
+			this.resources = resources;
+		}
+
+		public void join() {
+			if (client != null) {
+				client.connect(serverName);
+				return;
+			}
+
+			try {
+				client = new ClientImpl(clientName, serverName, downloadCapacity, new Vector<Resource>(resources));
+			} catch (RemoteException e) {
+				logger.error("Cannot create the client " + clientName, e);
+			} catch (MalformedURLException e) {
+				logger.error("Cannot create the client " + clientName, e);
+			}
+		}
+
+		public void leave() {
+			if (client != null) {
+				client.disconnect();
+			}
+		}
+
+		public boolean search(Resource resource) {
+			return client != null && client.search(resource.getName() + " " + resource.getParts()) != null;
+		}
+	}
+}